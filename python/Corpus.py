@@ -5,8 +5,12 @@ import shutil
 import pprint
 import json
 import uuid
+import hashlib
+from tqdm import tqdm
+from javalang import tokenizer
 
 from Corpus import *
+import java_lang_utils as jlu
 
 pp = pprint.PrettyPrinter(indent=4)
 
@@ -23,6 +27,7 @@ class Corpus:
                 self.checkstyle = os.path.join(self.path, file)
                 break
         self.files = []
+        self.files_info = None
         self.update_files_list()
 
     def read_info(self):
@@ -30,6 +35,75 @@ class Corpus:
             data = json.load(f)
             self.info = data
 
+    def get_file_key(self, file):
+        return os.path.join(file[1], file[0])
+
+    def compute_file_info(self, content):
+        """Compute the record of a file: parseable flag, token count, hash, size and line count
+        """
+        try:
+            token_count = len(list(tokenizer.tokenize(content)))
+        except:
+            token_count = 0
+        return {
+            'parseable': token_count > 0 and jlu.check_well_formed_source(content),
+            'token_count': token_count,
+            'hash': hashlib.sha1(content.encode('utf-8')).hexdigest(),
+            'size': len(content.encode('utf-8')),
+            'line_count': content.count('\n')
+        }
+
+    def get_files_info_path(self):
+        return os.path.join(self.path, "files.json")
+
+    def read_files_info(self):
+        path = self.get_files_info_path()
+        if not os.path.exists(path):
+            return {}
+        with open(path) as f:
+            return json.load(f)
+
+    def save_files_info(self):
+        with open(self.get_files_info_path(), 'w') as f:
+            json.dump(self.files_info, f)
+
+    def update_files_info(self):
+        """Compute the records of the new or modified files (mtime or size changed) and persist them in files.json
+        """
+        files_info = self.read_files_info()
+        updated = False
+        for file in tqdm(self.files.values(), desc=f'{self.name} files info'):
+            key = self.get_file_key(file)
+            stat = os.stat(file[2])
+            if key in files_info and files_info[key].get('mtime') == stat.st_mtime_ns and files_info[key]['size'] == stat.st_size:
+                continue
+            with open(file[2]) as f:
+                content = f.read()
+            if key not in files_info or files_info[key]['hash'] != hashlib.sha1(content.encode('utf-8')).hexdigest():
+                files_info[key] = self.compute_file_info(content)
+            files_info[key]['mtime'] = stat.st_mtime_ns
+            files_info[key]['size'] = stat.st_size
+            updated = True
+        known_keys = set([ self.get_file_key(file) for file in self.files.values() ])
+        for key in list(files_info.keys()):
+            if key not in known_keys:
+                del files_info[key]
+                updated = True
+        self.files_info = files_info
+        if updated:
+            self.save_files_info()
+        return files_info
+
+    def get_files_info(self):
+        """The records of the files, checked once per corpus object against the mtime and the size of the files
+        """
+        if self.files_info is None:
+            return self.update_files_info()
+        return self.files_info
+
+    def get_file_info(self, file):
+        return self.get_files_info()[self.get_file_key(file)]
+
     def update_files_list(self):
         file_list = dict()
         l = len(self.training_data_folder_path)
@@ -13,7 +13,7 @@ from core import *
 import git_helper
 
 import matplotlib
-matplotlib.use('TkAgg')
+matplotlib.use('TkAgg' if os.environ.get('DISPLAY') else 'Agg')
 
 
 config = configparser.ConfigParser()
@@ -8,6 +8,7 @@
 import os
 import xml.etree.ElementTree as ET
 import subprocess
+import threading
 import sys
 from functools import reduce
 
@@ -18,6 +19,7 @@ from core import *
 
 dir_path = os.path.dirname(os.path.realpath(__file__))
 _CHECKSTYLE_JAR = os.path.join(dir_path, "../", "jars/checkstyle-8.23-all.jar")
+_DAEMON_SOURCE = os.path.join(dir_path, "java", "CheckstyleDaemon.java")
 
 
 def check(checkstyle_file_path, file_path, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=False, only_java=False):
@@ -34,6 +36,56 @@ def check(checkstyle_file_path, file_path, checkstyle_jar=_CHECKSTYLE_JAR, only_
     output = parse_res(output, only_targeted=only_targeted, only_java=only_java)
     return (output, process.returncode)
 
+class Checkstyle_Daemon:
+    """
+    Resident checkstyle JVM (java/CheckstyleDaemon.java): same results as check, without
+    starting a JVM and loading the configuration for every run
+    """
+
+    def __init__(self, checkstyle_jar=_CHECKSTYLE_JAR, classes_dir=os.path.join(dir_path, "java", "classes")):
+        self.checkstyle_jar = checkstyle_jar
+        self.classes_dir = classes_dir
+        self.lock = threading.Lock()
+        self.process = None
+
+    def compile(self):
+        class_file = os.path.join(self.classes_dir, 'CheckstyleDaemon.class')
+        if not os.path.exists(class_file) or os.path.getmtime(class_file) < os.path.getmtime(_DAEMON_SOURCE):
+            create_dir(self.classes_dir)
+            subprocess.check_call(['javac', '-cp', self.checkstyle_jar, '-d', self.classes_dir, _DAEMON_SOURCE])
+
+    def start(self):
+        self.compile()
+        self.process = subprocess.Popen(
+            ['java', '-cp', os.pathsep.join([self.checkstyle_jar, self.classes_dir]), 'CheckstyleDaemon'],
+            stdin=subprocess.PIPE,
+            stdout=subprocess.PIPE
+        )
+
+    def check(self, checkstyle_file_path, file_path, only_targeted=False, only_java=False):
+        """
+        Run checkstyle on the dir, see check
+        """
+        request = '\t'.join([ os.path.abspath(path) for path in [checkstyle_file_path] + file_path.split(' ') ]) + '\n'
+        with self.lock:
+            if self.process is None or self.process.poll() is not None:
+                self.start()
+            self.process.stdin.write(request.encode('utf-8'))
+            self.process.stdin.flush()
+            header = self.process.stdout.readline().decode('utf-8').strip()
+            if not header.startswith('OK '):
+                raise RuntimeError(f'Checkstyle daemon: {header or "no answer"}')
+            number_of_errors, length = [ int(value) for value in header.split(' ')[1:] ]
+            output = self.process.stdout.read(length)
+        return (parse_res(output, only_targeted=only_targeted, only_java=only_java), number_of_errors)
+
+    def close(self):
+        with self.lock:
+            if self.process is not None:
+                self.process.stdin.close()
+                self.process.wait()
+                self.process = None
+
 def parse_res(output, only_targeted=False, only_java=False):
     """
     Parse the reults from XML to a dict
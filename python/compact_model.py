@@ -0,0 +1,377 @@
+# -*- coding: utf-8 -*-
+
+"""Self-contained TorchScript export of the repair model.
+The export reads an OpenNMT checkpoint (brnn encoder with bridge, input feed
+LSTM decoder with mlp attention, see utils/train.sh) and saves a scripted
+encoder/decoder/generator and its vocabulary. The runtime only needs torch.
+The same model can also be trained directly on the token id arrays of token_ids.
+"""
+
+import os
+import sys
+import json
+import torch
+from typing import List, Tuple
+
+import token_utils
+from core import group_by
+
+if not hasattr(torch.jit, 'export'):
+    raise ImportError(f'The exported model needs torch >= 1.6 (see requirements.txt), torch {torch.__version__} is installed')
+
+BOS_TOKEN = '<s>'
+EOS_TOKEN = '</s>'
+UNK_TOKEN = '<unk>'
+
+
+class Compact_Model(torch.nn.Module):
+    """Encoder, decoder and generator of an OpenNMT RNN model, scriptable
+    """
+
+    def __init__(self, src_vocab_size: int, tgt_vocab_size: int, embedding_size: int, rnn_size: int, layers: int, bidirectional: bool, use_bridge: bool, dropout: float = 0.):
+        super().__init__()
+        directions = 2 if bidirectional else 1
+        encoder_size = rnn_size // directions
+        self.bidirectional = bidirectional
+        self.layers = layers
+        self.use_bridge = use_bridge
+        self.encoder_size = encoder_size
+        # same places as the OpenNMT dropout: embeddings, between the layers and decoder output, only active in training
+        self.dropout = torch.nn.Dropout(dropout)
+        self.src_embedding = torch.nn.Embedding(src_vocab_size, embedding_size)
+        self.encoder = torch.nn.LSTM(embedding_size, encoder_size, num_layers=layers, bidirectional=bidirectional, dropout=dropout if layers > 1 else 0.)
+        self.bridge_h = torch.nn.Linear(encoder_size * layers, encoder_size * layers)
+        self.bridge_c = torch.nn.Linear(encoder_size * layers, encoder_size * layers)
+        self.tgt_embedding = torch.nn.Embedding(tgt_vocab_size, embedding_size)
+        self.decoder_layers = torch.nn.ModuleList([
+            torch.nn.LSTMCell(embedding_size + rnn_size if layer == 0 else rnn_size, rnn_size)
+            for layer in range(layers)
+        ])
+        self.linear_context = torch.nn.Linear(rnn_size, rnn_size, bias=False)
+        self.linear_query = torch.nn.Linear(rnn_size, rnn_size)
+        self.v = torch.nn.Linear(rnn_size, 1, bias=False)
+        self.linear_out = torch.nn.Linear(rnn_size * 2, rnn_size)
+        self.generator = torch.nn.Linear(rnn_size, tgt_vocab_size)
+
+    def fix_hidden(self, hidden: torch.Tensor) -> torch.Tensor:
+        # (layers * directions, batch, dim) -> (layers, batch, directions * dim)
+        if self.bidirectional:
+            return torch.cat([hidden[0:hidden.size(0):2], hidden[1:hidden.size(0):2]], 2)
+        return hidden
+
+    @torch.jit.export
+    def encode(self, src: torch.Tensor) -> Tuple[torch.Tensor, torch.Tensor, torch.Tensor, torch.Tensor]:
+        """
+        :param src: (src_len, batch) token ids
+        :return: memory bank (batch, src_len, rnn_size), its attention projection, h and c (layers, batch, rnn_size)
+        """
+        memory_bank, (h, c) = self.encoder(self.dropout(self.src_embedding(src)))
+        return self.finish_encoding(memory_bank, h, c)
+
+    def encode_packed(self, src: torch.Tensor, lengths: torch.Tensor) -> Tuple[torch.Tensor, torch.Tensor, torch.Tensor, torch.Tensor]:
+        """Encode a padded batch without running the encoder on the padding,
+        the states are the ones of encode on each source alone (used by the training)
+        :param lengths: (batch) lengths of the sources
+        """
+        embedded = torch.nn.utils.rnn.pack_padded_sequence(self.dropout(self.src_embedding(src)), lengths, enforce_sorted=False)
+        memory_bank, (h, c) = self.encoder(embedded)
+        memory_bank, _ = torch.nn.utils.rnn.pad_packed_sequence(memory_bank, total_length=src.size(0))
+        return self.finish_encoding(memory_bank, h, c)
+
+    def finish_encoding(self, memory_bank: torch.Tensor, h: torch.Tensor, c: torch.Tensor) -> Tuple[torch.Tensor, torch.Tensor, torch.Tensor, torch.Tensor]:
+        if self.use_bridge:
+            h = torch.relu(self.bridge_h(h.view(-1, self.bridge_h.in_features))).view(h.size())
+            c = torch.relu(self.bridge_c(c.view(-1, self.bridge_c.in_features))).view(c.size())
+        memory_bank = memory_bank.transpose(0, 1).contiguous()
+        return memory_bank, self.linear_context(memory_bank), self.fix_hidden(h), self.fix_hidden(c)
+
+    @torch.jit.export
+    def decode_step(self, tokens: torch.Tensor, h: torch.Tensor, c: torch.Tensor, input_feed: torch.Tensor, memory_bank: torch.Tensor, memory_projection: torch.Tensor, memory_mask: torch.Tensor) -> Tuple[torch.Tensor, torch.Tensor, torch.Tensor, torch.Tensor]:
+        """
+        :param tokens: (batch) previous token ids
+        :param memory_mask: (batch, src_len) 0 for the source tokens, -inf for the padding
+        :return: log probabilities (batch, tgt_vocab_size), h, c and the next input feed
+        """
+        input = torch.cat([self.dropout(self.tgt_embedding(tokens)), input_feed], 1)
+        hs: List[torch.Tensor] = []
+        cs: List[torch.Tensor] = []
+        index = 0
+        for layer in self.decoder_layers:
+            h_i, c_i = layer(input, (h[index], c[index]))
+            input = h_i if index + 1 == self.layers else self.dropout(h_i)
+            hs.append(h_i)
+            cs.append(c_i)
+            index += 1
+        # mlp attention
+        query = self.linear_query(input).unsqueeze(1)
+        scores = self.v(torch.tanh(query + memory_projection)).squeeze(2) + memory_mask
+        align = torch.softmax(scores, -1)
+        context = torch.bmm(align.unsqueeze(1), memory_bank).squeeze(1)
+        output = self.dropout(self.linear_out(torch.cat([context, input], 1)))
+        log_probs = torch.log_softmax(self.generator(output), -1)
+        return log_probs, torch.stack(hs), torch.stack(cs), output
+
+    def forward(self, src: torch.Tensor) -> torch.Tensor:
+        memory_bank, memory_projection, h, c = self.encode(src)
+        return memory_bank
+
+
+def get_itos(field):
+    field = getattr(field, 'base_field', field)
+    return list(field.vocab.itos)
+
+
+def rename_state(model_state, generator_state):
+    """Rename the parameters of the OpenNMT checkpoint to the ones of Compact_Model
+    """
+    prefixes = (
+        ('encoder.embeddings.make_embedding.emb_luts.0.', 'src_embedding.'),
+        ('decoder.embeddings.make_embedding.emb_luts.0.', 'tgt_embedding.'),
+        ('encoder.rnn.', 'encoder.'),
+        ('encoder.bridge.0.', 'bridge_h.'),
+        ('encoder.bridge.1.', 'bridge_c.'),
+        ('decoder.rnn.layers.', 'decoder_layers.'),
+        ('decoder.attn.', '')
+    )
+    state = {}
+    for key, value in model_state.items():
+        for prefix, new_prefix in prefixes:
+            if key.startswith(prefix):
+                state[new_prefix + key[len(prefix):]] = value
+                break
+    for key, value in generator_state.items():
+        state['generator.' + key.split('.')[-1]] = value
+    return state
+
+
+def export_model(model_path, target_path, vocab_path):
+    """Export an OpenNMT checkpoint as a scripted model and its vocabulary
+    """
+    import translator
+    translator.import_open_nmt()
+    from onmt.inputters.inputter import old_style_vocab, load_old_vocab
+
+    checkpoint = torch.load(model_path, map_location='cpu')
+    fields = checkpoint['vocab']
+    if old_style_vocab(fields):
+        fields = load_old_vocab(fields, 'text')
+    fields = dict(fields)
+    vocab = { 'src': get_itos(fields['src']), 'tgt': get_itos(fields['tgt']) }
+
+    model_state = checkpoint['model']
+    if 'decoder.attn.linear_context.weight' not in model_state:
+        raise ValueError('Only the mlp attention models can be exported')
+    layers = len([ key for key in model_state if key.startswith('decoder.rnn.layers.') and key.endswith('.weight_ih') ])
+    embedding_size = model_state['encoder.embeddings.make_embedding.emb_luts.0.weight'].size(1)
+    rnn_size = model_state['decoder.attn.linear_query.weight'].size(0)
+    model = Compact_Model(
+        len(vocab['src']),
+        len(vocab['tgt']),
+        embedding_size,
+        rnn_size,
+        layers,
+        bidirectional=('encoder.rnn.weight_ih_l0_reverse' in model_state),
+        use_bridge=('encoder.bridge.0.weight' in model_state)
+    )
+    state = rename_state(model_state, checkpoint['generator'])
+    if not model.use_bridge:
+        state.update({ key:value for key, value in model.state_dict().items() if key.startswith('bridge_') })
+    model.load_state_dict(state)
+    model.eval()
+
+    torch.jit.script(model).save(target_path)
+    with open(vocab_path, 'w') as f:
+        json.dump(vocab, f)
+    return target_path
+
+
+def compute_loss(model, src, tgt, padding: int):
+    """Teacher forced negative log likelihood of the target (tgt_len, batch), without the padding.
+    The padding of the sources is packed out of the encoder, as the translator encodes each input alone.
+    """
+    memory_bank, memory_projection, h, c = model.encode_packed(src, (src != padding).sum(0))
+    memory_mask = torch.zeros(src.size(1), src.size(0)).masked_fill(src.t() == padding, -float('inf'))
+    input_feed = torch.zeros(src.size(1), h.size(2))
+    loss = torch.zeros(1)
+    for step in range(tgt.size(0) - 1):
+        log_probs, h, c, input_feed = model.decode_step(tgt[step], h, c, input_feed, memory_bank, memory_projection, memory_mask)
+        loss = loss + torch.nn.functional.nll_loss(log_probs, tgt[step + 1], ignore_index=padding, reduction='sum')
+    return loss, int((tgt[1:] != padding).sum())
+
+
+def train_model(tokens_dir, target_path, vocab_path, embedding_size=64, rnn_size=256, layers=1, dropout=0.3, batch_size=32, learning_rate=0.1, max_grad_norm=2, train_steps=30000, valid_steps=1000):
+    """Train a model on the token id arrays of ml.gen_IO (export_ids) and save it like export_model.
+    The hyper parameters are the ones of utils/train.sh, the vocabulary is the fixed one of token_ids.
+    """
+    import token_ids
+    vocabulary = token_ids.load_vocabulary(tokens_dir)
+    padding = vocabulary.index('<blank>')
+    model = Compact_Model(len(vocabulary), len(vocabulary), embedding_size, rnn_size, layers, bidirectional=True, use_bridge=True, dropout=dropout)
+    for parameter in model.parameters():
+        torch.nn.init.uniform_(parameter, -0.1, 0.1)
+    optimizer = torch.optim.Adagrad(model.parameters(), lr=learning_rate, initial_accumulator_value=0.1)
+
+    def validate():
+        model.eval()
+        total_loss, total_tokens = 0., 0
+        with torch.no_grad():
+            for src, tgt in token_ids.iter_batches(tokens_dir, 'validation', batch_size, shuffle=False, vocabulary=vocabulary):
+                loss, tokens = compute_loss(model, torch.from_numpy(src), torch.from_numpy(tgt), padding)
+                total_loss += loss.item()
+                total_tokens += tokens
+        model.train()
+        return total_loss / max(total_tokens, 1)
+
+    step = 0
+    model.train()
+    while step < train_steps:
+        for src, tgt in token_ids.iter_batches(tokens_dir, 'learning', batch_size, vocabulary=vocabulary):
+            loss, tokens = compute_loss(model, torch.from_numpy(src), torch.from_numpy(tgt), padding)
+            optimizer.zero_grad()
+            (loss / max(tokens, 1)).backward()
+            torch.nn.utils.clip_grad_norm_(model.parameters(), max_grad_norm)
+            optimizer.step()
+            step += 1
+            if step % valid_steps == 0:
+                print(f'step {step}: validation loss {validate():.4f}')
+            if step >= train_steps:
+                break
+
+    model.eval()
+    torch.jit.script(model).save(target_path)
+    with open(vocab_path, 'w') as f:
+        json.dump({ 'src': vocabulary, 'tgt': vocabulary }, f)
+    return target_path
+
+
+class Compact_Translator:
+    """Beam search translator of an exported model, same interface as translator.Translator.
+    The inputs of a batch are decoded together, the alive hypotheses of all of them are the rows of each decoding step.
+    """
+
+    def __init__(self, model_path, vocab_path, n_best=5, beam_size=5, batch_size=30, max_length=100, only_formatting=False, num_threads=None):
+        torch.set_num_threads(num_threads or os.cpu_count())
+        self.model = torch.jit.load(model_path)
+        self.model.eval()
+        with open(vocab_path) as f:
+            vocab = json.load(f)
+        self.src_stoi = { token:index for index, token in enumerate(vocab['src']) }
+        self.tgt_itos = vocab['tgt']
+        tgt_stoi = { token:index for index, token in enumerate(self.tgt_itos) }
+        self.bos = tgt_stoi[BOS_TOKEN]
+        self.eos = tgt_stoi[EOS_TOKEN]
+        self.n_best = n_best
+        self.beam_size = max(beam_size, n_best)
+        self.batch_size = batch_size
+        self.max_length = max_length
+        self.only_formatting = only_formatting
+        self.mask = torch.zeros(len(self.tgt_itos))
+        if only_formatting:
+            for index, token in enumerate(self.tgt_itos):
+                if index != self.eos and not token_utils.is_whitespace_token(token):
+                    self.mask[index] = -float('inf')
+
+    def translate(self, inputs, lengths=None):
+        """Translate a list of token sequences
+        :param lengths: the number of tokens each translation must have (only_formatting)
+        :return: for each input, the list of the n best translations
+        """
+        results = []
+        with torch.no_grad():
+            for start in range(0, len(inputs), self.batch_size):
+                batch_lengths = None if lengths is None or not self.only_formatting else lengths[start:(start + self.batch_size)]
+                results += self.beam_search(inputs[start:(start + self.batch_size)], batch_lengths)
+        return results
+
+    def encode(self, inputs):
+        """Encode the inputs one by one, so that the encoder never sees any padding, and pad the results
+        :return: memory bank and its projection (batch, max src_len, rnn_size), memory mask (batch, max src_len), h and c (layers, batch, rnn_size)
+        """
+        unknown = self.src_stoi[UNK_TOKEN]
+        encoded = [
+            self.model.encode(torch.tensor([ self.src_stoi.get(token, unknown) for token in input.split(' ') ]).unsqueeze(1))
+            for input in inputs
+        ]
+        max_length = max([ memory_bank.size(1) for memory_bank, memory_projection, h, c in encoded ])
+        def pad(tensor):
+            return torch.nn.functional.pad(tensor, (0, 0, 0, max_length - tensor.size(1)))
+        memory_mask = torch.zeros(len(inputs), max_length)
+        for index, (memory_bank, memory_projection, h, c) in enumerate(encoded):
+            memory_mask[index, memory_bank.size(1):] = -float('inf')
+        return (
+            torch.cat([ pad(memory_bank) for memory_bank, memory_projection, h, c in encoded ]),
+            torch.cat([ pad(memory_projection) for memory_bank, memory_projection, h, c in encoded ]),
+            memory_mask,
+            torch.cat([ h for memory_bank, memory_projection, h, c in encoded ], 1),
+            torch.cat([ c for memory_bank, memory_projection, h, c in encoded ], 1)
+        )
+
+    def beam_search(self, inputs, lengths=None):
+        memory_bank, memory_projection, memory_mask, h, c = self.encode(inputs)
+        min_lengths = lengths if lengths is not None else [0] * len(inputs)
+        max_lengths = lengths if lengths is not None else [self.max_length] * len(inputs)
+        vocab_size = len(self.tgt_itos)
+
+        # one row per alive hypothesis, the rows of an input are contiguous
+        row_inputs = [ input for input in range(len(inputs)) if max_lengths[input] > 0 ]
+        finished = [ [] if max_lengths[input] > 0 else [(0., [])] for input in range(len(inputs)) ]
+        hypotheses = [ [] for _ in row_inputs ]
+        scores = torch.zeros(len(row_inputs))
+        tokens = torch.full((len(row_inputs),), self.bos, dtype=torch.long)
+        input_feed = torch.zeros(len(row_inputs), h.size(2))
+        h, c = h[:, row_inputs], c[:, row_inputs]
+        step = 0
+        while row_inputs:
+            selected = torch.tensor(row_inputs)
+            log_probs, h, c, input_feed = self.model.decode_step(
+                tokens, h, c, input_feed,
+                memory_bank[selected], memory_projection[selected], memory_mask[selected]
+            )
+            if self.only_formatting:
+                # renormalize over the allowed tokens
+                log_probs = log_probs + self.mask
+                log_probs = log_probs - torch.logsumexp(log_probs, -1, keepdim=True)
+            candidates = scores.unsqueeze(1) + log_probs
+
+            next_rows = []
+            for input, rows in group_by(lambda row: row_inputs[row], range(len(row_inputs))).items():
+                input_candidates = candidates[rows[0]:(rows[-1] + 1)]
+                if step < min_lengths[input]:
+                    input_candidates[:, self.eos] = -float('inf')
+                input_candidates = input_candidates.reshape(-1)
+                top_scores, top_ids = input_candidates.topk(min(self.beam_size, input_candidates.size(0)))
+                alive = []
+                for score, id in zip(top_scores.tolist(), top_ids.tolist()):
+                    if score == -float('inf'):
+                        continue
+                    origin, word = divmod(id, vocab_size)
+                    if word == self.eos:
+                        finished[input].append((score, hypotheses[rows[0] + origin]))
+                    else:
+                        alive.append((score, rows[0] + origin, word))
+                if alive and step + 1 >= max_lengths[input]:
+                    finished[input] += [ (score, hypotheses[origin] + [word]) for score, origin, word in alive ]
+                    continue
+                # the n best can not change once the n-th best finished hypothesis beats the best alive one
+                if not alive or (len(finished[input]) >= self.n_best and sorted(finished[input], key=lambda x: -x[0])[self.n_best - 1][0] >= alive[0][0]):
+                    continue
+                next_rows += [ (input, score, origin, word) for score, origin, word in alive ]
+
+            origins = torch.tensor([ origin for input, score, origin, word in next_rows ], dtype=torch.long)
+            hypotheses = [ hypotheses[origin] + [word] for input, score, origin, word in next_rows ]
+            row_inputs = [ input for input, score, origin, word in next_rows ]
+            scores = torch.tensor([ score for input, score, origin, word in next_rows ])
+            tokens = torch.tensor([ word for input, score, origin, word in next_rows ], dtype=torch.long)
+            h, c, input_feed = h[:, origins], c[:, origins], input_feed[origins]
+            step += 1
+        return [
+            [ ' '.join([ self.tgt_itos[word] for word in hypothesis ]) for score, hypothesis in sorted(input_finished, key=lambda x: -x[0])[:self.n_best] ]
+            for input_finished in finished
+        ]
+
+
+if __name__ == '__main__':
+    if sys.argv[1] == 'export':
+        print(export_model(sys.argv[2], sys.argv[3], sys.argv[4]))
+    if sys.argv[1] == 'train':
+        print(train_model(sys.argv[2], sys.argv[3], sys.argv[4]))
@@ -13,13 +13,13 @@ from itertools import product
 import numpy as np
 
 import matplotlib
+# the interactive backend needs a display, the figures are not shown without one
+matplotlib.use('TkAgg' if os.environ.get('DISPLAY') else 'Agg')
 import matplotlib.pyplot as plt
 import matplotlib.patches as mpatches
 from matplotlib import pyplot as plt
 from matplotlib_venn import venn3, venn3_circles
 
-matplotlib.use('TkAgg')
-
 
 def protocol6(results, repair_tools, disposition=110):
     fig = plt.figure(figsize=(15, 12))
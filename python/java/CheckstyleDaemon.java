@@ -0,0 +1,104 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.puppycrawl.tools.checkstyle.Checker;
+import com.puppycrawl.tools.checkstyle.ConfigurationLoader;
+import com.puppycrawl.tools.checkstyle.PropertiesExpander;
+import com.puppycrawl.tools.checkstyle.XMLLogger;
+import com.puppycrawl.tools.checkstyle.api.AutomaticBean;
+import com.puppycrawl.tools.checkstyle.api.Configuration;
+
+/**
+ * Resident checkstyle, see checkstyle.Checkstyle_Daemon.
+ * Every request is one line on stdin: the checkstyle configuration path and the files or
+ * directories to check, separated by tabs. The answer on stdout is a line
+ * "OK [number of errors] [number of bytes]" followed by the xml report, or "ERROR [message]".
+ * The configurations are loaded once and their checkers are kept.
+ */
+public final class CheckstyleDaemon {
+
+    private final Map<String, Checker> checkers = new HashMap<>();
+
+    private Checker getChecker(String configPath) throws Exception {
+        final String key = configPath + ':' + new File(configPath).lastModified();
+        Checker checker = checkers.get(key);
+        if (checker == null) {
+            final Configuration configuration = ConfigurationLoader.loadConfiguration(
+                configPath,
+                new PropertiesExpander(System.getProperties()),
+                ConfigurationLoader.IgnoredModulesOptions.OMIT
+            );
+            checker = new Checker();
+            checker.setModuleClassLoader(Checker.class.getClassLoader());
+            checker.configure(configuration);
+            checkers.put(key, checker);
+        }
+        return checker;
+    }
+
+    private static void listFiles(File file, List<File> files) {
+        if (file.isDirectory()) {
+            final File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    listFiles(child, files);
+                }
+            }
+        }
+        else if (file.isFile()) {
+            files.add(file);
+        }
+    }
+
+    private byte[] check(String[] request, int[] numberOfErrors) throws Exception {
+        final Checker checker = getChecker(request[0]);
+        final List<File> files = new ArrayList<>();
+        for (int index = 1; index < request.length; index++) {
+            listFiles(new File(request[index]), files);
+        }
+        final ByteArrayOutputStream report = new ByteArrayOutputStream();
+        final XMLLogger logger = new XMLLogger(report, AutomaticBean.OutputStreamOptions.NONE);
+        checker.addListener(logger);
+        try {
+            numberOfErrors[0] = checker.process(files);
+        }
+        finally {
+            checker.removeListener(logger);
+        }
+        return report.toByteArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final CheckstyleDaemon daemon = new CheckstyleDaemon();
+        final BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        // the answers have stdout to themselves
+        final OutputStream output = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+        String line;
+        while ((line = input.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                final int[] numberOfErrors = new int[1];
+                final byte[] report = daemon.check(line.split("\t"), numberOfErrors);
+                output.write(("OK " + numberOfErrors[0] + " " + report.length + "\n").getBytes(StandardCharsets.UTF_8));
+                output.write(report);
+            }
+            catch (Exception e) {
+                output.write(("ERROR " + String.valueOf(e.getMessage()).replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            output.flush();
+        }
+    }
+}
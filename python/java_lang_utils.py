@@ -6,6 +6,7 @@ import subprocess
 import random
 import intervals as I
 import collections
+import difflib
 import sys
 import os
 
@@ -395,6 +396,18 @@ def check_well_formed(file_path):
         pass
 
 
+def check_well_formed_source(file_content):
+    """
+    Check if javalang can parse the source, silently
+    :param file_content: the java source code
+    """
+    try:
+        parse.parse(file_content)
+        return True
+    except:
+        return False
+
+
 def get_bad_formated(dir):
     """
     Get all the bad formated files from a dir
@@ -422,6 +435,65 @@ def compute_diff_size(file_A, file_B):
     return output.count(b'\n>') + output.count(b'\n<')
 
 
+def apply_edit(source, edit):
+    """
+    Apply a text edit (start, end, replacement), None is no edit
+    :return: the edited source
+    """
+    if edit is None:
+        return source
+    start, end, replacement = edit
+    return source[:start] + replacement + source[end:]
+
+
+def count_edits(sequence_A, sequence_B):
+    """Number of removed and added elements between two sequences
+    """
+    matcher = difflib.SequenceMatcher(None, sequence_A, sequence_B, autojunk=False)
+    return sum([
+        (i2 - i1) + (j2 - j1)
+        for tag, i1, i2, j1, j2 in matcher.get_opcodes()
+        if tag != 'equal'
+    ])
+
+
+def compute_line_diff_size(source_A, source_B):
+    """
+    In-process equivalent of compute_diff_size on the sources
+    :return: the number of removed and added lines
+    """
+    return count_edits(source_A.split('\n'), source_B.split('\n'))
+
+
+def compute_whitespace_distance(tokenized_A, tokenized_B):
+    """
+    Whitespace token edit distance between two tokenized sources (see tokenize_with_white_space)
+    :return: the number of different whitespace when the java tokens are the same, the token edit distance otherwise
+    """
+    whitespace_A, tokens_A = tokenized_A
+    whitespace_B, tokens_B = tokenized_B
+    values_A = [ token.value for token in tokens_A ]
+    values_B = [ token.value for token in tokens_B ]
+    if values_A == values_B:
+        return sum([ 1 for space_A, space_B in zip(whitespace_A, whitespace_B) if space_A != space_B ])
+    return count_edits(list(zip(values_A, whitespace_A)), list(zip(values_B, whitespace_B)))
+
+
+def rank_repairs(original, repairs):
+    """
+    Rank the repairs of a source by line diff size, then whitespace distance, then given order (beam rank)
+    :param original: the source code to repair
+    :param repairs: the source codes of the repairs, in beam rank order
+    :return: list of (index of the repair, line diff size, whitespace distance), the best first
+    """
+    tokenized_original = tokenize_with_white_space(original)
+    scores = [
+        (index, compute_line_diff_size(original, repair), compute_whitespace_distance(tokenized_original, tokenize_with_white_space(repair)))
+        for index, repair in enumerate(repairs)
+    ]
+    return sorted(scores, key=lambda score: (score[1], score[2], score[0]))
+
+
 if __name__ == "__main__":
     if (sys.argv[1] == "char_pos"):
         print(get_char_pos_from_lines(sys.argv[2], int(sys.argv[3])))
@@ -1,8 +1,5 @@
 import java_lang_utils as jlu
-import tensorflow as tf
 from functools import reduce
-import numpy as np
-from tensorflow import keras
 from javalang import tokenizer
 from tqdm import tqdm
 import os
@@ -11,18 +8,21 @@ import json
 import sys
 import pprint
 import glob
-import matplotlib
 import java_lang_utils
 import shutil
 import uuid
+import time
+import math
+import multiprocessing
 from termcolor import colored
-matplotlib.use('TkAgg')
-import matplotlib.pyplot as plt
 from difflib import Differ
+from collections import Counter
 import configparser
 
 from core import *
 import token_utils
+import token_ids
+import synthetic_pack
 
 pp = pprint.PrettyPrinter(indent=4)
 
@@ -82,6 +82,7 @@ def get_space_value(space):
 
 #Deprecated
 def build_vocabulary(files):
+    import numpy as np
     count = {}
     tokenized_files = [ jlu.tokenize_with_white_space(jlu.open_file(path)) for path in files ]
     whitespace_id = set()
@@ -118,26 +119,26 @@ def build_vocabulary(files):
 
     return get_vector, whitespace_id
 
-def tokenize_file_to_repair(file_path, error):
-    spaces, tokens = jlu.tokenize_with_white_space(jlu.open_file(file_path))
-
-    info = {}
-
+# (before, after) number of tokens around the error, for each way of locating it
+_DEFAULT_WINDOWS = {
+    'column': (10, 10),
+    'line': (2, 13),
+    'after_line': (2, 18)
+}
+
+def locate_error(tokens, error, n_lines=6):
+    """Locate the error in the tokens
+    :return: dict with the kind of location, the anchor tokens and the context bounds (start, end)
+    """
     token_started = False
     token_line_start = -1
     token_line_end = -1
     count = 0
 
-    tokens_errored = []
-    n_lines = 6
-
     start = len(tokens)
     end = 0
 
-    from_token = 0
-    to_token = 0
-
-    for token, space in zip(tokens, spaces):
+    for token in tokens:
         if token.position[0] >= int(error['line']) - n_lines and token.position[0] <= int(error['line']) + n_lines :
             start = min(count, start)
             end = max(count, end)
@@ -153,32 +154,61 @@ def tokenize_file_to_repair(file_path, error):
     if token_line_end == -1:
         token_line_end = token_line_start
 
-    # print(error)
-
     if 'column' in error and error['type'] != 'OneStatementPerLine':
         errored_token_index = -1
-        around = 10
         for token, index in zip(tokens,range(len(tokens))):
             if token.position[0] <= int(error['line']) and token.position[1] <= int(error['column']):
                 errored_token_index = index
-        from_token = max(0, errored_token_index - around)
-        to_token = min(len(tokens), errored_token_index + 1 + around)
+        kind, anchor_start, anchor_end = 'column', errored_token_index, errored_token_index
+    elif token_line_start != -1:
+        kind, anchor_start, anchor_end = 'line', token_line_start, token_line_end
     else:
-        around = 2
-        around_after = 13
         errored_token_index = -1
-        if token_line_start != -1:
-            from_token = max(start, token_line_start - around)
-            to_token = min(end, token_line_end + around_after + 1)
-        else:
-            errored_token_index = -1
-            around = 2
-            around_after = 18
-            for token, index in zip(tokens,range(len(tokens))):
-                if token.position[0] < int(error['line']):
-                    errored_token_index = index
-            from_token = max(0, errored_token_index - around)
-            to_token = min(len(tokens), errored_token_index + 1 + around_after)
+        for token, index in zip(tokens,range(len(tokens))):
+            if token.position[0] < int(error['line']):
+                errored_token_index = index
+        kind, anchor_start, anchor_end = 'after_line', errored_token_index, errored_token_index
+    return {
+        'kind': kind,
+        'anchor_start': anchor_start,
+        'anchor_end': anchor_end,
+        'start': start,
+        'end': end
+    }
+
+def get_window(error_type, kind, window_policies=None):
+    """Get the (before, after) window of an error type, the default one if no policy is known
+    """
+    if window_policies and error_type in window_policies and kind in window_policies[error_type]:
+        return tuple(window_policies[error_type][kind]), error_type
+    return _DEFAULT_WINDOWS[kind], 'default'
+
+def tokenize_file_to_repair(file_path, error, window_policies=None):
+    return tokenize_source_to_repair(jlu.open_file(file_path), error, window_policies=window_policies)
+
+def tokenize_source_to_repair(source, error, window_policies=None):
+    spaces, tokens = jlu.tokenize_with_white_space(source)
+
+    info = {}
+
+    tokens_errored = []
+
+    location = locate_error(tokens, error)
+    start = location['start']
+    end = location['end']
+    (before, after), policy = get_window(error['type'], location['kind'], window_policies)
+
+    if location['kind'] == 'line':
+        from_token = max(start, location['anchor_start'] - before)
+        to_token = min(end, location['anchor_end'] + after + 1)
+    else:
+        from_token = max(0, location['anchor_start'] - before)
+        to_token = min(len(tokens), location['anchor_end'] + 1 + after)
+    if policy != 'default':
+        # the context around the tag is cut to the window too, the default windows keep the n_lines context
+        start = min(max(start, from_token - before), from_token)
+        end = max(min(end, to_token + after), to_token)
+
     tokens_errored_in_tag = []
     for token, space in zip(tokens[from_token:to_token], spaces[from_token:to_token]):
         tokens_errored_in_tag.append(get_token_value(token))
@@ -203,10 +233,65 @@ def tokenize_file_to_repair(file_path, error):
     info['end'] = end
     info['error'] = error
     info['tokens_errored_in_tag'] = tokens_errored_in_tag
+    info['window'] = { 'kind': location['kind'], 'before': before, 'after': after, 'policy': policy }
 
     return tokens_errored, info
 
-def tokenize_errored_file_model2(file, file_orig, error):
+def split_fix(fix, locations):
+    """Attribute every changed whitespace of a sample to the closest error
+    :param fix: indexes of the changed whitespace
+    :param locations: the locations of the errors (see locate_error)
+    :return: list, for each error, of the indexes of its fix
+    """
+    def distance(index, location):
+        return max(location['anchor_start'] - index, index - location['anchor_end'], 0)
+    fixes = [ [] for location in locations ]
+    for index in fix:
+        closest = min(range(len(locations)), key=lambda error_index: distance(index, locations[error_index]))
+        fixes[closest].append(index)
+    return fixes
+
+def compute_window_policies(dir, sub_set='learning', percentile=95):
+    """Compute, for each error type, the smallest window containing the fix
+    of the given percentile of the synthetic samples
+    :return: dict error type -> kind of location -> (before, after)
+    """
+    needed = {}
+    dataset = synthetic_pack.open_dataset(dir)
+    for id in tqdm(dataset.list_ids(sub_set), desc='window policies'):
+        file_name, errored, original, metadata = dataset.read_sample(sub_set, id)
+        spaces, tokens = jlu.tokenize_with_white_space(errored)
+        spaces_orig, tokens_orig = jlu.tokenize_with_white_space(original)
+        if len(tokens) != len(tokens_orig):
+            continue
+        fix = [ index for index, (space, space_orig) in enumerate(zip(spaces, spaces_orig)) if space != space_orig ]
+        if not fix:
+            continue
+        errors = metadata.get('errors', [metadata])
+        locations = [ locate_error(tokens, error) for error in errors ]
+        for error, location, error_fix in zip(errors, locations, split_fix(fix, locations)):
+            if not error_fix:
+                continue
+            before = max(0, location['anchor_start'] - min(error_fix))
+            after = max(0, max(error_fix) - location['anchor_end'])
+            needed.setdefault(error['type'], {}).setdefault(location['kind'], []).append((before, after))
+
+    def get_percentile(values):
+        values = sorted(values)
+        return values[max(0, math.ceil(percentile / 100 * len(values)) - 1)]
+
+    return {
+        error_type:{
+            kind:(get_percentile([ b for b, a in windows ]), get_percentile([ a for b, a in windows ]))
+            for kind, windows in kinds.items()
+        }
+        for error_type, kinds in needed.items()
+    }
+
+def tokenize_errored_file_model2(file, file_orig, error, window_policies=None):
+    return tokenize_errored_source_model2(jlu.open_file(file), jlu.open_file(file_orig), error, window_policies=window_policies)
+
+def tokenize_errored_source_model2(errored, original, error, window_policies=None):
 
     # else:
     #     for token, space in zip(tokens[start:end], spaces[start:end]):
@@ -215,13 +300,13 @@ def tokenize_errored_file_model2(file, file_orig, error):
     #     tokens_errored.append(f'<{error["type"]}>')
     #     tokens_errored.append(f'</{error["type"]}>')
 
-    tokens_errored, info = tokenize_file_to_repair(file, error)
+    tokens_errored, info = tokenize_source_to_repair(errored, error, window_policies=window_policies)
 
     tokens_errored_in_tag = info['tokens_errored_in_tag']
     from_token = info['from_token']
     to_token = info['to_token']
 
-    spaces, tokens = jlu.tokenize_with_white_space(jlu.open_file(file_orig))
+    spaces, tokens = jlu.tokenize_with_white_space(original)
     tokens_correct = []
 
     for token, space in zip(tokens[from_token:to_token], spaces[from_token:to_token]):
@@ -278,77 +363,262 @@ def whatever(dir, folder, id, only_formatting=False):
     error = open_json(error_file)
     return tokenize_errored_file_model2(file, file_orig, error)
 
-def merge_IOs(sub_set, ids, target):
-    dir = f'{target}/{sub_set}'
-    for type in ['I', 'O', 'E']:
-        with open(os.path.join(target, f'{sub_set}-{type}.txt'), 'w+') as f:
-            for id in tqdm(ids, desc=f'merging {type}s...'):
-                f.write(open_file(os.path.join(dir, f'{id}-{type}.txt')))
-                f.write('\n')
-
-def get_length_and_vocabulary(folder):
-    files = os.listdir(folder)
-    Is = [ file for file in files if 'I.txt' in file ]
-    Os = [ file for file in files if 'O.txt' in file ]
-    max_length = 0
-    in_length = []
-    out_length = []
-    max_out_length = 0
-    vocabulary = set()
-    for file in tqdm(Is, desc='Is'):
-        tokens = open_file(os.path.join(folder, file)).split(' ')
-        if len(tokens)<1000:
-            in_length.append(len(tokens))
-        vocabulary = vocabulary | set(tokens)
-    for file in tqdm(Os, desc='Os'):
-        tokens = open_file(os.path.join(folder, file)).split(' ')
-        out_length.append(len(tokens))
-        vocabulary = vocabulary | set(tokens)
-    return vocabulary, in_length, out_length
-
-def print_max_length_and_vocabulary(folder):
-    vocabulary, in_length, out_length = get_length_and_vocabulary(folder)
-    print(vocabulary)
-    print(f'Vocabulary size {len(vocabulary)}')
-    print(f'Max in lenght : {max(in_length)}')
-    print(f'Max out lenght : {max(out_length)}')
-    n_bins = 20
-
-    fig, axs = plt.subplots(1, 2, sharey=True, tight_layout=True)
+def whatever_all(dir, folder, id, only_formatting=False, window_policies=None):
+    """Tokenize every error of a synthetic sample.
+    The first error keeps the sample id, the next ones are suffixed with their index.
+    The dataset can be packed (see synthetic_pack).
+    """
+    file_name, errored, original, metadata = synthetic_pack.open_dataset(dir).read_sample(folder, id)
+    errors = metadata.get('errors', [metadata])
+    return [
+        (str(id) if index == 0 else f'{id}_{index}', tokenize_errored_source_model2(errored, original, error, window_policies=window_policies))
+        for index, error in enumerate(errors)
+    ]
 
-    # We can set the number of bins with the `bins` kwarg
-    axs[0].hist(in_length, bins=n_bins)
-    axs[1].hist(out_length, bins=n_bins)
+def tokenize_sample(job):
+    """Tokenize every error of a synthetic sample, run by the gen_IO workers
+    :param job: (dir, sub_set, id, only_formatting, window_policies)
+    :return: (list of (sample_id, tokens_errored, tokens_correct, tokens_errored_in_tag, info), elapsed time)
+    """
+    dir, sub_set, id, only_formatting, window_policies = job
+    start = time.time()
+    results = []
+    for sample_id, sample in whatever_all(dir, sub_set, id, window_policies=window_policies):
+        tokens_errored, tokens_correct, tokens_errored_in_tag, info = sample
+        if only_formatting:
+            tokens_correct = tokens_correct[1::2]
+            tokens_errored_in_tag = tokens_errored_in_tag[1::2]
+        results.append((sample_id, tokens_errored, tokens_correct, tokens_errored_in_tag, info))
+    return results, time.time() - start
+
+def print_throughput(sub_set, number_of_samples, tokenize_time, write_time, total_time):
+    def rate(duration):
+        return number_of_samples / duration if duration > 0 else float('inf')
+    print(f'{sub_set}: {number_of_samples} samples, '
+        f'tokenize {rate(tokenize_time):.1f}/s (per worker), '
+        f'write {rate(write_time):.1f}/s, '
+        f'total {rate(total_time):.1f}/s')
+
+class IO_Writer:
+    """Stream the samples of a sub set into the merged {sub_set}-I/O/E.txt files
+    and the {sub_set}-info.jsonl store, in one pass.
+    The per sample files are only written in debug mode.
+    With export_ids, the sequences are also written as int16 token id arrays.
+    """
+
+    def __init__(self, target, sub_set, debug=False, export_ids=False):
+        self.target = target
+        self.sub_set = sub_set
+        self.files = {
+            type:open(os.path.join(target, f'{sub_set}-{type}.txt'), 'w')
+            for type in ['I', 'O', 'E']
+        }
+        self.info_file = open(os.path.join(target, f'{sub_set}-info.jsonl'), 'w')
+        self.index = {}
+        self.debug_dir = create_dir(f'{target}/{sub_set}') if debug else None
+        self.ids_writer = token_ids.Token_Id_Writer(target, sub_set) if export_ids else None
+
+    def write(self, sample_id, tokens_errored, tokens_correct, tokens_errored_in_tag, info):
+        contents = {
+            'I': " ".join(tokens_errored),
+            'O': " ".join(tokens_correct),
+            'E': " ".join(tokens_errored_in_tag)
+        }
+        offsets = { type:f.tell() for type, f in self.files.items() }
+        offsets['info'] = self.info_file.tell()
+        self.index[sample_id] = (len(self.index), offsets)
+        for type, content in contents.items():
+            self.files[type].write(content)
+            self.files[type].write('\n')
+        self.info_file.write(json.dumps(info))
+        self.info_file.write('\n')
+        if self.ids_writer:
+            self.ids_writer.write(tokens_errored, tokens_correct)
+        if self.debug_dir:
+            for type, content in contents.items():
+                save_file(self.debug_dir, f'{sample_id}-{type}.txt', content)
+            save_json(self.debug_dir, f'{sample_id}-info.json', info)
+
+    def close(self):
+        for f in self.files.values():
+            f.close()
+        self.info_file.close()
+        if self.ids_writer:
+            self.ids_writer.close()
+        save_json(self.target, f'{self.sub_set}-info.index.json', self.index)
+
+_indexes = {}
+
+def get_index(target, sub_set):
+    """The {sub_set}-info.index.json index, loaded once (again if the file changed)
+    :return: dict sample id -> (line, { 'I', 'O', 'E', 'info': byte offset })
+    """
+    path = os.path.join(target, f'{sub_set}-info.index.json')
+    stat = os.stat(path)
+    version = (stat.st_mtime_ns, stat.st_size)
+    if path not in _indexes or _indexes[path][0] != version:
+        _indexes[path] = (version, open_json(path))
+    return _indexes[path][1]
+
+def get_offset(target, sub_set, sample_id, type):
+    line, offsets = get_index(target, sub_set)[str(sample_id)]
+    return offsets[type]
+
+def read_info(target, sub_set, sample_id):
+    """Read the info of a sample from the {sub_set}-info.jsonl store
+    """
+    offset = get_offset(target, sub_set, sample_id, 'info')
+    with open(os.path.join(target, f'{sub_set}-info.jsonl')) as f:
+        f.seek(offset)
+        return json.loads(f.readline())
+
+def read_IO(target, sub_set, type, sample_id):
+    """Read the line of a sample in a merged {sub_set}-{type}.txt file
+    """
+    offset = get_offset(target, sub_set, sample_id, type)
+    with open(os.path.join(target, f'{sub_set}-{type}.txt')) as f:
+        f.seek(offset)
+        return f.readline()[:-1]
+
+def get_length_and_vocabulary(folder, sub_sets=('learning', 'validation', 'testing')):
+    """Stream the merged {sub_set}-I.txt and {sub_set}-O.txt files
+    :return: (vocabulary Counter, { 'I': length Counter, 'O': length Counter })
+    """
+    vocabulary = Counter()
+    lengths = { type:Counter() for type in ['I', 'O'] }
+    for sub_set in sub_sets:
+        for type in ['I', 'O']:
+            path = os.path.join(folder, f'{sub_set}-{type}.txt')
+            if not os.path.exists(path):
+                continue
+            with open(path) as f:
+                for line in tqdm(f, desc=f'{sub_set}-{type}'):
+                    tokens = line.rstrip('\n').split(' ')
+                    vocabulary.update(tokens)
+                    lengths[type][len(tokens)] += 1
+    return vocabulary, lengths
+
+def get_length_percentiles(length_count, percentiles=(50, 90, 95, 99, 99.9, 100)):
+    """Compute the percentiles of a length Counter
+    """
+    total = sum(length_count.values())
+    result = {}
+    if total == 0:
+        return result
+    sorted_lengths = sorted(length_count.items())
+    for percentile in percentiles:
+        goal = percentile / 100 * total
+        cumulated = 0
+        for length, count in sorted_lengths:
+            cumulated += count
+            if cumulated >= goal:
+                result[str(percentile)] = length
+                break
+    return result
 
-    plt.show()
+def get_length_histogram(length_count, bin_size=25):
+    histogram = Counter()
+    for length, count in length_count.items():
+        histogram[length // bin_size * bin_size] += count
+    return { str(bin): count for bin, count in sorted(histogram.items()) }
+
+def get_cap_percentile():
+    """Percentile of the lengths used as the sequence length caps of the preprocessing
+    """
+    return config.getfloat('SEQUENCE', 'cap_percentile', fallback=100)
+
+def compute_IO_stats(folder, cap_percentile=None):
+    """Compute the vocabulary and the length statistics of the merged files, save them in stats.json.
+    The sequence length caps of the preprocessing are the cap_percentile of the lengths
+    (the cap_percentile of the [SEQUENCE] section by default).
+    """
+    if cap_percentile is None:
+        cap_percentile = get_cap_percentile()
+    vocabulary, lengths = get_length_and_vocabulary(folder)
+    stats = {}
+    stats['vocabulary_size'] = len(vocabulary)
+    stats['vocabulary'] = dict(vocabulary.most_common())
+    stats['lengths'] = {
+        type:{
+            'max': max(length_count.keys()) if length_count else 0,
+            'percentiles': get_length_percentiles(length_count),
+            'histogram': get_length_histogram(length_count)
+        }
+        for type, length_count in lengths.items()
+    }
+    caps = { type:get_length_percentiles(length_count, percentiles=(cap_percentile,)) for type, length_count in lengths.items() }
+    stats['cap_percentile'] = cap_percentile
+    stats['src_seq_length'] = caps['I'].get(str(cap_percentile), 0)
+    stats['tgt_seq_length'] = caps['O'].get(str(cap_percentile), 0)
+    save_json(folder, 'stats.json', stats)
+    return stats
 
-def gen_IO(dir, target, only_formatting=False):
+def print_max_length_and_vocabulary(folder):
+    stats = compute_IO_stats(folder)
+    print(f'Vocabulary size {stats["vocabulary_size"]}')
+    for type, name in (('I', 'in'), ('O', 'out')):
+        print(f'Max {name} lenght : {stats["lengths"][type]["max"]}')
+        print(f'Percentiles {name} lenght : {stats["lengths"][type]["percentiles"]}')
+    print(f'-src_seq_length {stats["src_seq_length"]} -tgt_seq_length {stats["tgt_seq_length"]}')
+
+def gen_IO(dir, target, only_formatting=False, debug=False, processes=1, chunksize=16, export_ids=False, window_percentile=None):
+    """Tokenize the synthetic samples, in parallel when processes > 1.
+    The results are written in id order, the output is the same as a sequential run.
+    With export_ids, the fixed vocabulary and the token id arrays are also written.
+    With window_percentile, the windows are computed per error type from the learning set
+    and saved in window_policies.json.
+    """
     create_dir(target)
+    window_policies = None
+    if window_percentile is not None:
+        window_policies = compute_window_policies(dir, percentile=window_percentile)
+        save_json(target, 'window_policies.json', window_policies)
+    if export_ids:
+        token_ids.save_vocabulary(target)
     # dir = get_dataset_dir(dataset)
     sub_sets = ['learning', 'validation', 'testing']
     diffs = []
     weirdos = []
+    sample_lengths = {}
+    dataset = synthetic_pack.open_dataset(dir)
+    pool = multiprocessing.Pool(processes) if processes > 1 else None
     for sub_set in sub_sets:
-        sub_set_dir = os.path.join(dir, f'./{sub_set}')
-        if not os.path.exists(sub_set_dir):
+        if not dataset.has_split(sub_set):
             continue
-        target_sub_set = f'{target}/{sub_set}'
-        create_dir(target_sub_set)
-        synthesis_error_ids = list_folders(sub_set_dir)
-        synthesis_error_ids = sorted(synthesis_error_ids, key=int)
-        for id in tqdm(synthesis_error_ids, desc=f'{dir.split("/")[-1]}/{sub_set}'):
-            tokens_errored, tokens_correct, tokens_errored_in_tag, info = whatever(dir, sub_set, id)
-            if only_formatting:
-                tokens_correct = tokens_correct[1::2]
-                tokens_errored_in_tag = tokens_errored_in_tag[1::2]
-            save_file(target_sub_set, f'{id}-I.txt', " ".join(tokens_errored))
-            save_file(target_sub_set, f'{id}-O.txt', " ".join(tokens_correct))
-            save_file(target_sub_set, f'{id}-E.txt', " ".join(tokens_errored_in_tag))
-            save_json(target_sub_set, f'{id}-info.json', info)
-            diffs.append(info['count_diff'])
-            if info['count_diff'] == 2:
-                weirdos.append(f'{sub_set}/{id}')
-        merge_IOs(sub_set, synthesis_error_ids, target)
+        synthesis_error_ids = dataset.list_ids(sub_set)
+        writer = IO_Writer(target, sub_set, debug=debug, export_ids=export_ids)
+        sample_lengths[sub_set] = []
+        number_of_samples = 0
+        tokenize_time = 0
+        write_time = 0
+        start = time.time()
+        jobs = [ (dir, sub_set, id, only_formatting, window_policies) for id in synthesis_error_ids ]
+        if pool:
+            results = pool.imap(tokenize_sample, jobs, chunksize=chunksize)
+        else:
+            results = map(tokenize_sample, jobs)
+        for samples, elapsed in tqdm(results, total=len(jobs), desc=f'{dir.split("/")[-1]}/{sub_set}'):
+            tokenize_time += elapsed
+            write_start = time.time()
+            for sample_id, tokens_errored, tokens_correct, tokens_errored_in_tag, info in samples:
+                writer.write(sample_id, tokens_errored, tokens_correct, tokens_errored_in_tag, info)
+                number_of_samples += 1
+                sample_lengths[sub_set].append((len(tokens_errored), len(tokens_correct)))
+                diffs.append(info['count_diff'])
+                if info['count_diff'] == 2:
+                    weirdos.append(f'{sub_set}/{sample_id}')
+            write_time += time.time() - write_start
+        writer.close()
+        print_throughput(sub_set, number_of_samples, tokenize_time, write_time, time.time() - start)
+    if pool:
+        pool.close()
+        pool.join()
+    stats = compute_IO_stats(target)
+    # the preprocessing drops the samples above the caps of stats.json
+    for sub_set, lengths in sample_lengths.items():
+        too_long = len([ 1 for src_length, tgt_length in lengths if src_length > stats['src_seq_length'] or tgt_length > stats['tgt_seq_length'] ])
+        if too_long:
+            print(f'{sub_set}: {too_long} samples exceed the sequence caps ({stats["cap_percentile"]} percentile) and will be dropped by the preprocessing')
     shutil.copy('./utils/send.sh', target)
     # print(weirdos)
 
@@ -454,33 +724,67 @@ def match_input_to_source(source, error_info, input):
 
     return result
 
-def de_tokenize(errored_source, error_info, new_tokens, tabulations, only_formatting=False):
+def get_token_offsets(source, tokens):
+    line_offsets = [0]
+    for line in source.split('\n'):
+        line_offsets.append(line_offsets[-1] + len(line) + 1)
+    return [ line_offsets[token.position[0] - 1] + token.position[1] - 1 for token in tokens ]
+
+def de_tokenize_to_edit(errored_source, error_info, new_tokens, tabulations=False, only_formatting=False):
+    """Apply the predicted whitespace to the tokens of the lines around the error
+    (line - 1 to line + 1, every token without error) without reformatting the file
+    :return: the text edit (start, end, replacement), None if there is no token to change
+    """
     whitespace, tokens = jlu.tokenize_with_white_space(errored_source)
+    offsets = get_token_offsets(errored_source, tokens)
     from_token = error_info['from_token']
     to_token = error_info['to_token']
 
-
     if only_formatting:
         new_white_space_tokens = new_tokens
     else:
         new_white_space_tokens = new_tokens[1::2]
-    # print(new_white_space_tokens)
     new_white_space = [ token_utils.whitespace_token_to_tuple(token) for token in new_white_space_tokens ]
-    # print(new_white_space)
-
-    # whitespace[from_token:to_token] = new_white_space
-    # whitespace[from_token:min(from_token + len(new_white_space),to_token)] = new_white_space[:min(to_token - from_token, len(new_white_space))]
+    new_whitespace = list(whitespace)
     for index in range(min(to_token - from_token, len(new_white_space))):
-        whitespace[from_token + index] = new_white_space[index]
-
-    result = jlu.reformat(whitespace, tokens, tabulations=tabulations)
+        new_whitespace[from_token + index] = new_white_space[index]
 
+    # code tokens of the lines to rewrite, the comments are only rewritten between two of them
+    code_tokens = [ index for index, token in enumerate(tokens) if not isinstance(token, tokenizer.Comment) ]
     if 'error' in error_info:
         line = int(error_info['error']['line'])
-        return jlu.mix_sources(errored_source, result, line-1, to_line=line+1)
+        in_lines = [ index for index in code_tokens if line - 1 <= tokens[index].position[0] <= line + 1 ]
     else:
-        return result #jlu.mix_sources(errored_source, result, tokens[from_token].position[0], to_line=tokens[to_token].position[0])
-    # return jlu.mix_sources(errored_source, result, tokens[from_token].position[0], to_line=tokens[to_token].position[0])
+        in_lines = code_tokens
+    if len(in_lines) == 0:
+        return None
+    first, last = in_lines[0], in_lines[-1]
+
+    # indentation of the line of the first token, as reformat computes it
+    line_start = tokens[first].position[0]
+    position = tokens[min([ index for index in range(first + 1) if tokens[index].position[0] == line_start ])].position[1] - 1
+    indentation = '\t' if tabulations else ' '
+    replacement = ''
+    for index in range(first, last):
+        replacement += tokens[index].value
+        new_lines, spaces = new_whitespace[index]
+        if new_lines > 0:
+            position = max(position + spaces, 0)
+            if new_whitespace[index] == whitespace[index] and tokens[index + 1].position[1] - 1 == position:
+                # same line break and indentation, the original text is kept
+                replacement += errored_source[(offsets[index] + len(tokens[index].value)):offsets[index + 1]]
+            else:
+                replacement += '\n' * new_lines + indentation * position
+        elif new_whitespace[index] == whitespace[index]:
+            replacement += errored_source[(offsets[index] + len(tokens[index].value)):offsets[index + 1]]
+        else:
+            replacement += ' ' * spaces
+    replacement += tokens[last].value
+    return (offsets[first], offsets[last] + len(tokens[last].value), replacement)
+
+def de_tokenize(errored_source, error_info, new_tokens, tabulations, only_formatting=False):
+    edit = de_tokenize_to_edit(errored_source, error_info, new_tokens, tabulations=tabulations, only_formatting=only_formatting)
+    return jlu.apply_edit(errored_source, edit)
 
 def get_predictions(dataset, n, id):
     tokenized_dir = get_tokenized_dir(dataset)
@@ -488,11 +792,11 @@ def get_predictions(dataset, n, id):
 
 def get_I(dataset, type, id):
     tokenized_dir = get_tokenized_dir(dataset)
-    return open_file(os.path.join(tokenized_dir, f'{type}/{id}-I.txt'))
+    return read_IO(tokenized_dir, type, 'I', id)
 
 def get_O(dataset, type, id):
     tokenized_dir = get_tokenized_dir(dataset)
-    return open_file(os.path.join(tokenized_dir, f'{type}/{id}-O.txt'))
+    return read_IO(tokenized_dir, type, 'O', id)
 
 def get_line(file, line):
     return open_file(file).split('\n')[line]
@@ -511,8 +815,7 @@ def get_orig_filename_and_content(dataset, id):
 
 def get_error_info(dataset, id):
     tokenized_dir = get_tokenized_dir(dataset)
-    tokenized_testing_dir = f'{tokenized_dir}/testing'
-    error_info = open_json(os.path.join(tokenized_testing_dir, f'{id}-info.json'))
+    error_info = read_info(tokenized_dir, 'testing', id)
     return error_info
 
 def de_tokenize_file(dataset, n, id, only_formatting=False):
@@ -579,7 +882,11 @@ def main(args):
     if len(args) >= 2 and args[1] == 'gen':
         target = get_tokenized_dir('')
         for dataset in dataset_list:
-            gen_IO(get_dataset_dir(dataset), os.path.join(target, dataset), only_formatting=True)
+            gen_IO(get_dataset_dir(dataset), os.path.join(target, dataset), only_formatting=True, processes=multiprocessing.cpu_count())
+    if len(args) >= 2 and args[1] == 'gen-ids':
+        target = get_tokenized_dir('')
+        for dataset in dataset_list:
+            gen_IO(get_dataset_dir(dataset), os.path.join(target, dataset), only_formatting=True, processes=multiprocessing.cpu_count(), export_ids=True)
     if len(args) >= 2 and args[1] == 'info':
         folder = args[2]
         print_max_length_and_vocabulary(folder)
@@ -0,0 +1,204 @@
+# -*- coding: utf-8 -*-
+
+"""Staged pipeline with bounded queues.
+Every stage runs in its own threads and reads the items of the previous stage
+from a bounded queue, a full queue blocks the upstream stage (backpressure).
+The CPU bound stages run their function in a process pool, the threads only wait for it.
+The depth of every queue is sampled to see which stage is the bottleneck.
+The first exception of a stage stops the pipeline.
+"""
+
+import time
+import queue
+import threading
+import multiprocessing
+from collections import Counter
+
+_END = object()
+
+
+class Stage_Metrics:
+    """Items processed, busy time and queue depths of the stages
+    """
+
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.items = Counter()
+        self.busy = Counter()
+        self.depths = {}
+
+    def add(self, name, items, duration):
+        with self.lock:
+            self.items[name] += items
+            self.busy[name] += duration
+
+    def sample(self, queues):
+        with self.lock:
+            for name, stage_queue in queues.items():
+                self.depths.setdefault(name, []).append(stage_queue.qsize())
+
+    def get_report(self, wall_time):
+        with self.lock:
+            return {
+                'wall_time': wall_time,
+                'stages': {
+                    name:{
+                        'items': self.items[name],
+                        'busy_time': self.busy[name],
+                        'max_queue_depth': max(self.depths.get(name, [0])),
+                        'mean_queue_depth': sum(self.depths.get(name, [0])) / max(len(self.depths.get(name, [])), 1)
+                    }
+                    for name in self.depths
+                }
+            }
+
+
+class Stage:
+    """A stage of the pipeline
+    :param function: item -> list of output items, or list of items -> list of output items when batch_size is set
+    :param workers: number of threads (a batched stage always has one)
+    :param batch_size: maximal number of items given at once to function
+    :param timeout: seconds to wait for a full batch before processing a partial one
+    :param processes: run function in a pool of workers processes, function must be picklable
+    """
+
+    def __init__(self, name, function, workers=1, batch_size=None, timeout=0.05, processes=False):
+        self.name = name
+        self.function = function
+        self.workers = 1 if batch_size else workers
+        self.batch_size = batch_size
+        self.timeout = timeout
+        self.processes = processes
+
+
+class Pipeline:
+
+    def __init__(self, stages, queue_size=256, sampling_interval=0.1):
+        self.stages = stages
+        self.queues = { stage.name:queue.Queue(maxsize=queue_size) for stage in stages }
+        self.output = queue.Queue(maxsize=queue_size)
+        self.sampling_interval = sampling_interval
+        self.metrics = Stage_Metrics()
+        self.error = None
+        self.pools = {}
+        self.running = False
+
+    def get_output_queue(self, index):
+        if index + 1 < len(self.stages):
+            return self.queues[self.stages[index + 1].name]
+        return self.output
+
+    def call(self, stage, argument):
+        if stage.name in self.pools:
+            return self.pools[stage.name].apply(stage.function, (argument,))
+        return stage.function(argument)
+
+    def process(self, stage, items, output_queue):
+        if self.error is not None:
+            # the pipeline failed, the remaining items are only drained
+            return
+        start = time.time()
+        try:
+            results = self.call(stage, items if stage.batch_size else items[0])
+        except Exception as e:
+            self.fail(e)
+            return
+        self.metrics.add(stage.name, len(items), time.time() - start)
+        for result in results:
+            output_queue.put(result)
+
+    def run_worker(self, stage, input_queue, output_queue, finished):
+        while True:
+            item = input_queue.get()
+            if item is _END:
+                break
+            self.process(stage, [item], output_queue)
+        self.finish(stage, output_queue, finished)
+
+    def run_batcher(self, stage, input_queue, output_queue, finished):
+        batch = []
+        ended = False
+        while not ended:
+            timed_out = False
+            try:
+                item = input_queue.get(timeout=stage.timeout)
+                if item is _END:
+                    ended = True
+                else:
+                    batch.append(item)
+            except queue.Empty:
+                timed_out = True
+            if batch and (ended or timed_out or len(batch) >= stage.batch_size):
+                self.process(stage, batch, output_queue)
+                batch = []
+        self.finish(stage, output_queue, finished)
+
+    def fail(self, error):
+        with self.metrics.lock:
+            if self.error is not None:
+                return
+            self.error = error
+        # wake up run() right away, it raises the error
+        self.output.put(_END)
+
+    def finish(self, stage, output_queue, finished):
+        # the last worker of the stage tells the next stage that there are no more items
+        with finished['lock']:
+            finished['count'] += 1
+            if finished['count'] == stage.workers:
+                next_workers = self.get_next_workers(stage)
+                for _ in range(next_workers):
+                    output_queue.put(_END)
+
+    def get_next_workers(self, stage):
+        index = self.stages.index(stage)
+        if index + 1 < len(self.stages):
+            return self.stages[index + 1].workers
+        return 1
+
+    def feed(self, items):
+        first = self.stages[0]
+        for item in items:
+            self.queues[first.name].put(item)
+        for _ in range(first.workers):
+            self.queues[first.name].put(_END)
+
+    def monitor(self):
+        while self.running:
+            self.metrics.sample(self.queues)
+            time.sleep(self.sampling_interval)
+
+    def run(self, items):
+        """Run every item through the stages
+        :return: (list of the outputs of the last stage, metrics report)
+        """
+        start = time.time()
+        self.running = True
+        self.pools = { stage.name:multiprocessing.Pool(stage.workers) for stage in self.stages if stage.processes }
+        threads = [ threading.Thread(target=self.feed, args=(items,)), threading.Thread(target=self.monitor) ]
+        for index, stage in enumerate(self.stages):
+            target = self.run_batcher if stage.batch_size else self.run_worker
+            finished = { 'lock': threading.Lock(), 'count': 0 }
+            for _ in range(stage.workers):
+                threads.append(threading.Thread(target=target, args=(stage, self.queues[stage.name], self.get_output_queue(index), finished)))
+        for thread in threads:
+            thread.daemon = True
+            thread.start()
+
+        results = []
+        try:
+            while True:
+                item = self.output.get()
+                if item is _END:
+                    break
+                results.append(item)
+        finally:
+            self.running = False
+            # every worker thread has at most one task in the pool, closing it does not wait long
+            # (terminate can deadlock with the task handler of the pool)
+            for pool in self.pools.values():
+                pool.close()
+                pool.join()
+        if self.error is not None:
+            raise self.error
+        return results, self.metrics.get_report(time.time() - start)
@@ -0,0 +1,132 @@
+# -*- coding: utf-8 -*-
+
+"""Persistent cache of the translations.
+The n best translations are stored by (model checksum, n_best, tokenized error),
+the least recently used entries are evicted above the size cap.
+The writes are committed every commit_every writes or commit_interval seconds,
+a crashed or killed run only loses the last ones, the cap is enforced at each commit.
+"""
+
+import os
+import json
+import time
+import sqlite3
+import hashlib
+import threading
+
+from core import *
+
+
+def compute_checksum(file_path, chunk_size=1 << 20):
+    checksum = hashlib.sha1()
+    with open(file_path, 'rb') as f:
+        for chunk in iter(lambda: f.read(chunk_size), b''):
+            checksum.update(chunk)
+    return checksum.hexdigest()
+
+
+def get_key(model_checksum, n_best, input, length=None):
+    key = f'{model_checksum}:{n_best}:{length}:{input}'
+    return hashlib.sha1(key.encode('utf-8')).hexdigest()
+
+
+class Prediction_Cache:
+    """sqlite backed LRU cache of n best translations
+    """
+
+    def __init__(self, path, max_entries=100000, commit_every=100, commit_interval=5):
+        create_dir(os.path.dirname(os.path.abspath(path)))
+        self.path = path
+        self.max_entries = max_entries
+        self.commit_every = commit_every
+        self.commit_interval = commit_interval
+        self.pending = 0
+        self.last_commit = time.time()
+        self.lock = threading.Lock()
+        self.connection = sqlite3.connect(path, check_same_thread=False)
+        self.connection.executescript('''
+            CREATE TABLE IF NOT EXISTS predictions (key TEXT PRIMARY KEY, n_best TEXT, last_used REAL);
+            CREATE INDEX IF NOT EXISTS predictions_last_used ON predictions (last_used);
+        ''')
+        self.hits = 0
+        self.misses = 0
+
+    def get(self, key):
+        with self.lock:
+            row = self.connection.execute('SELECT n_best FROM predictions WHERE key = ?', (key,)).fetchone()
+            if row is None:
+                self.misses += 1
+                return None
+            self.hits += 1
+            self.connection.execute('UPDATE predictions SET last_used = ? WHERE key = ?', (time.time(), key))
+            self.wrote()
+        return json.loads(row[0])
+
+    def put(self, key, n_best):
+        with self.lock:
+            self.connection.execute('INSERT OR REPLACE INTO predictions VALUES (?, ?, ?)', (key, json.dumps(n_best), time.time()))
+            self.wrote()
+
+    def wrote(self):
+        """Count a write, evict and commit when enough writes or time went by (called with the lock)
+        """
+        self.pending += 1
+        if self.pending >= self.commit_every or time.time() - self.last_commit >= self.commit_interval:
+            self.evict_and_commit()
+
+    def evict(self):
+        """Remove the least recently used entries above the size cap
+        """
+        with self.lock:
+            self.evict_and_commit()
+
+    def evict_and_commit(self):
+        """Called with the lock
+        """
+        count = self.connection.execute('SELECT COUNT(*) FROM predictions').fetchone()[0]
+        if count > self.max_entries:
+            self.connection.execute(
+                'DELETE FROM predictions WHERE key IN (SELECT key FROM predictions ORDER BY last_used LIMIT ?)',
+                (count - self.max_entries,)
+            )
+        self.connection.commit()
+        self.pending = 0
+        self.last_commit = time.time()
+
+    def get_stats(self):
+        total = self.hits + self.misses
+        return {
+            'hits': self.hits,
+            'misses': self.misses,
+            'hit_rate': self.hits / total if total else 0
+        }
+
+    def close(self):
+        self.evict()
+        with self.lock:
+            self.connection.close()
+
+
+def gen_cached_translator(translate_batch, cache, model_checksum, n_best):
+    """Wrap a batch translator, only the inputs missing from the cache are translated
+    """
+    def translate(inputs, lengths=None):
+        keys = [
+            get_key(model_checksum, n_best, input, None if lengths is None else lengths[index])
+            for index, input in enumerate(inputs)
+        ]
+        cached = { key:cache.get(key) for key in set(keys) }
+        # the same error context is only translated once
+        missing = { key:index for index, key in reversed(list(enumerate(keys))) if cached[key] is None }
+        if missing:
+            indexes = list(missing.values())
+            missing_inputs = [ inputs[index] for index in indexes ]
+            if lengths is None:
+                translations = translate_batch(missing_inputs)
+            else:
+                translations = translate_batch(missing_inputs, lengths=[ lengths[index] for index in indexes ])
+            for index, translation in zip(indexes, translations):
+                cached[keys[index]] = translation
+                cache.put(keys[index], translation)
+        return [ cached[key] for key in keys ]
+    return translate
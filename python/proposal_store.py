@@ -0,0 +1,180 @@
+# -*- coding: utf-8 -*-
+
+"""Store of the repair proposals of a run.
+Every errored file is stored once, every proposal is a text edit (start, end, replacement)
+of the file of its error, in a single indexed sqlite file. The full files are only written
+for the checkstyle verification, in a temporary directory, and for the export.
+"""
+
+import os
+import sqlite3
+import tempfile
+import threading
+
+from core import *
+import checkstyle
+import java_lang_utils
+
+_STORE_FILE_NAME = 'proposals.db'
+
+
+def get_store_path(dir):
+    return os.path.join(dir, _STORE_FILE_NAME)
+
+
+def create_store(dir):
+    """Empty store of a new run in dir, the proposals of the previous run are removed
+    """
+    path = get_store_path(dir)
+    if os.path.exists(path):
+        os.remove(path)
+    return Proposal_Store(path)
+
+
+class Proposal_Store:
+    """Errored files by file id, errors by id and their proposals by (error id, proposal id)
+    with their verification status: None (not checked), 'unparseable', 'failing' or 'passing'
+    """
+
+    def __init__(self, path):
+        self.path = path
+        self.lock = threading.Lock()
+        self.connection = sqlite3.connect(path, check_same_thread=False)
+        self.connection.executescript('''
+            CREATE TABLE IF NOT EXISTS originals (file_id TEXT PRIMARY KEY, file_name TEXT, content TEXT);
+            CREATE TABLE IF NOT EXISTS errors (id TEXT PRIMARY KEY, file_id TEXT);
+            CREATE TABLE IF NOT EXISTS proposals (
+                id TEXT, proposal_id INTEGER, start INTEGER, end INTEGER, replacement TEXT, status TEXT,
+                PRIMARY KEY (id, proposal_id)
+            );
+        ''')
+
+    def commit(self):
+        with self.lock:
+            self.connection.commit()
+
+    def close(self):
+        with self.lock:
+            self.connection.commit()
+            self.connection.close()
+
+    def add_original(self, file_id, file_name, content):
+        with self.lock:
+            self.connection.execute('INSERT OR REPLACE INTO originals VALUES (?, ?, ?)', (file_id, file_name, content))
+
+    def add_error(self, id, file_id):
+        with self.lock:
+            self.connection.execute('INSERT OR REPLACE INTO errors VALUES (?, ?)', (id, file_id))
+
+    def list_errors(self):
+        with self.lock:
+            return [ id for id, in self.connection.execute('SELECT id FROM errors ORDER BY id') ]
+
+    def get_original(self, id):
+        """
+        :return: (file name, content) of the file of the error
+        """
+        with self.lock:
+            return self.connection.execute(
+                'SELECT file_name, content FROM errors JOIN originals ON errors.file_id = originals.file_id WHERE id = ?',
+                (id,)
+            ).fetchone()
+
+    def add_proposal(self, id, proposal_id, edit):
+        start, end, replacement = edit if edit is not None else (0, 0, '')
+        with self.lock:
+            self.connection.execute(
+                'INSERT OR REPLACE INTO proposals VALUES (?, ?, ?, ?, ?, NULL)',
+                (id, proposal_id, start, end, replacement)
+            )
+
+    def get_proposal(self, id, proposal_id):
+        """
+        :return: the full source of the proposal
+        """
+        return self.get_sources(((id, proposal_id),))[(id, proposal_id)][1]
+
+    def set_status(self, proposals, status):
+        with self.lock:
+            self.connection.executemany(
+                'UPDATE proposals SET status = ? WHERE id = ? AND proposal_id = ?',
+                [ (status, id, proposal_id) for id, proposal_id in proposals ]
+            )
+
+    def list_proposals(self, status=None):
+        with self.lock:
+            if status is None:
+                rows = self.connection.execute('SELECT id, proposal_id FROM proposals ORDER BY id, proposal_id')
+            else:
+                rows = self.connection.execute('SELECT id, proposal_id FROM proposals WHERE status = ? ORDER BY id, proposal_id', (status,))
+            return [ (id, proposal_id) for id, proposal_id in rows ]
+
+    def get_stats(self):
+        with self.lock:
+            return dict(self.connection.execute('SELECT IFNULL(status, \'unchecked\'), COUNT(*) FROM proposals GROUP BY status').fetchall())
+
+    def get_sources(self, proposals):
+        """Full sources of the proposals, every original is read once
+        :return: dict (id, proposal id) -> (file name, source)
+        """
+        originals = {}
+        sources = {}
+        for id, proposal_id in proposals:
+            if id not in originals:
+                originals[id] = self.get_original(id)
+            file_name, content = originals[id]
+            with self.lock:
+                edit = self.connection.execute(
+                    'SELECT start, end, replacement FROM proposals WHERE id = ? AND proposal_id = ?',
+                    (id, proposal_id)
+                ).fetchone()
+            sources[(id, proposal_id)] = (file_name, java_lang_utils.apply_edit(content, edit))
+        return sources
+
+    def materialize(self, dir, proposals, sources=None):
+        """Write the full files of the proposals, dir/batch_[proposal id]/[id]/[file name]
+        :return: dict (id, proposal id) -> path
+        """
+        sources = sources or self.get_sources(proposals)
+        paths = {}
+        for id, proposal_id in proposals:
+            file_name, source = sources[(id, proposal_id)]
+            folder = create_dir(os.path.join(dir, f'batch_{proposal_id}', id))
+            paths[(id, proposal_id)] = save_file(folder, file_name, source)
+        return paths
+
+    def check(self, checkstyle_rules, proposals, work_dir=None):
+        """Verify proposals: parse them in memory, then run checkstyle once on the parseable ones
+        :return: list of the passing (id, proposal id)
+        """
+        sources = self.get_sources(proposals)
+        parseable = []
+        unparseable = []
+        for proposal in proposals:
+            if java_lang_utils.check_well_formed_source(sources[proposal][1]):
+                parseable.append(proposal)
+            else:
+                unparseable.append(proposal)
+        self.set_status(unparseable, 'unparseable')
+        if len(parseable) == 0:
+            self.commit()
+            return []
+        with tempfile.TemporaryDirectory(dir=work_dir) as tmp_dir:
+            paths = self.materialize(tmp_dir, parseable, sources=sources)
+            checkstyle_result, number_of_errors = checkstyle.check(checkstyle_rules, tmp_dir, only_targeted=True)
+            passing_paths = set([ os.path.realpath(file) for file, result in checkstyle_result.items() if len(result['errors']) == 0 ])
+            passing = [ proposal for proposal, path in paths.items() if os.path.realpath(path) in passing_paths ]
+        self.set_status(passing, 'passing')
+        self.set_status(list(set(parseable) - set(passing)), 'failing')
+        self.commit()
+        return passing
+
+    def export(self, target_dir, proposals):
+        """Write the full files of the selected proposals, target_dir/[id]/[file name]
+        """
+        proposals = list(proposals)
+        sources = self.get_sources(proposals)
+        for id, proposal_id in proposals:
+            file_name, source = sources[(id, proposal_id)]
+            save_file(create_dir(os.path.join(target_dir, id)), file_name, source)
+        return target_dir
@@ -103,7 +103,8 @@ def experiment(name, corpus_dir):
         result[tool] = repaired
         # print(f'{tool} : {len(repaired)}')
         # json_pp(repaired)
-    result['out_of'] = list_folders(f'./styler/{name}/repair-attempt/batch_0')
+    # the repair attempts are in the proposal store, the errored files are the ones to repair
+    result['out_of'] = list_folders(f'{errored_dir}/1')
     return result
 
 
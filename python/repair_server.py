@@ -0,0 +1,174 @@
+# -*- coding: utf-8 -*-
+
+"""Local repair server.
+The model and a checkstyle JVM are loaded once and the server answers the repair
+requests of the IDE plugins and pre-commit hooks on localhost:
+POST /repair {"source": ..., "checkstyle": [content of checkstyle.xml], "errors": [optional], "file_name": [optional]}
+"""
+
+import os
+import sys
+import json
+import time
+import uuid
+import shutil
+import hashlib
+from http.server import HTTPServer, BaseHTTPRequestHandler
+
+from core import *
+import checkstyle
+import styler
+
+
+class Repair_Service:
+    """Repair in-memory sources with a resident translator
+    """
+
+    def __init__(self, model_name, work_dir, only_formatting=True, beam_width=3):
+        self.work_dir = create_dir(work_dir)
+        self.only_formatting = only_formatting
+        self.beam_width = beam_width
+        self.translate_batch, self.cache = styler.gen_repair_translator(
+            model_name,
+            only_formatting=only_formatting,
+            **styler.get_translator_settings(model_name, only_formatting=only_formatting)
+        )
+        self.window_policies = styler.get_window_policies(model_name)
+        self.checkstyle = checkstyle.Checkstyle_Daemon()
+        self.checkstyle.start()
+
+    def close(self):
+        self.checkstyle.close()
+        if self.cache:
+            self.cache.close()
+
+    def get_checkstyle_rules(self, content):
+        """The checkstyle configurations are written once, by content
+        """
+        rules_dir = create_dir(os.path.join(self.work_dir, 'checkstyle'))
+        path = os.path.join(rules_dir, hashlib.sha1(content.encode('utf-8')).hexdigest() + '.xml')
+        if not os.path.exists(path):
+            save_file(rules_dir, os.path.basename(path), content)
+        return path
+
+    def find_errors(self, request_dir, checkstyle_rules, file_name, source):
+        input_dir = create_dir(os.path.join(request_dir, 'input'))
+        save_file(input_dir, file_name, source)
+        checkstyle_result, number_of_errors = self.checkstyle.check(checkstyle_rules, input_dir, only_targeted=True)
+        return [ error for result in checkstyle_result.values() for error in result['errors'] ]
+
+    def repair(self, request):
+        """
+        :param request: dict with the source, the checkstyle configuration content and optionally the errors and the file name
+        :return: dict with the repaired source and the verdict of every error
+        """
+        start = time.time()
+        source = request['source']
+        file_name = get_file_name(request)
+        checkstyle_rules = self.get_checkstyle_rules(request['checkstyle'])
+        request_dir = create_dir(os.path.join(self.work_dir, 'requests', uuid.uuid4().hex))
+        try:
+            errors = request.get('errors')
+            if errors is None:
+                errors = self.find_errors(request_dir, checkstyle_rules, file_name, source)
+            targeted = [ error for error in errors if is_error_targeted(error) ]
+            best_states = styler.repair_sources(
+                { 'file': (file_name, source, targeted) },
+                self.translate_batch,
+                checkstyle_rules,
+                os.path.join(request_dir, 'repair-attempt'),
+                window_policies=self.window_policies,
+                only_formatting=self.only_formatting,
+                batch_size=core_config.getint('REPAIR', 'batch_size', fallback=64),
+                bucketing='none',
+                beam_width=self.beam_width,
+                run_checkstyle=self.checkstyle.check
+            )
+        finally:
+            shutil.rmtree(request_dir, ignore_errors=True)
+        new_source, remaining, ranks, repaired = best_states.get('file', (source, [], (), []))
+        verdicts = (
+            [ dict(error, verdict='repaired') for error in repaired ]
+            + [ dict(error, verdict='not repaired') for error in remaining ]
+            + [ dict(error, verdict='not targeted') for error in errors if not is_error_targeted(error) ]
+        )
+        return {
+            'source': new_source,
+            'repaired': len(remaining) == 0,
+            'errors': verdicts,
+            'ms': (time.time() - start) * 1000
+        }
+
+
+def get_file_name(request):
+    """The file name of the request, only a java file name without any directory is accepted
+    """
+    file_name = request.get('file_name', 'Repair.java')
+    if not isinstance(file_name, str) or os.path.basename(file_name) != file_name or not file_name.endswith('.java') or file_name.startswith('.'):
+        raise ValueError(f'invalid file name {file_name!r}')
+    return file_name
+
+
+def gen_handler(service):
+
+    class Repair_Handler(BaseHTTPRequestHandler):
+
+        def send_json(self, code, content):
+            body = json.dumps(content).encode('utf-8')
+            self.send_response(code)
+            self.send_header('Content-Type', 'application/json')
+            self.send_header('Content-Length', str(len(body)))
+            self.end_headers()
+            self.wfile.write(body)
+
+        def do_GET(self):
+            if self.path == '/health':
+                self.send_json(200, { 'status': 'ok' })
+            else:
+                self.send_json(404, { 'error': 'not found' })
+
+        def do_POST(self):
+            if self.path != '/repair':
+                self.send_json(404, { 'error': 'not found' })
+                return
+            try:
+                request = json.loads(self.rfile.read(int(self.headers.get('Content-Length', 0))).decode('utf-8'))
+            except ValueError:
+                self.send_json(400, { 'error': 'invalid json' })
+                return
+            if 'source' not in request or 'checkstyle' not in request:
+                self.send_json(400, { 'error': 'source and checkstyle are required' })
+                return
+            try:
+                get_file_name(request)
+            except ValueError as e:
+                self.send_json(400, { 'error': str(e) })
+                return
+            try:
+                self.send_json(200, service.repair(request))
+            except Exception as e:
+                self.send_json(500, { 'error': str(e) })
+
+    return Repair_Handler
+
+
+def serve(model_name, host='127.0.0.1', port=8765, work_dir='./styler/server', beam_width=3):
+    """Serve the repairs until interrupted, the requests are handled one at a time
+    """
+    service = Repair_Service(model_name, work_dir, beam_width=beam_width)
+    server = HTTPServer((host, port), gen_handler(service))
+    print(f'Repair server of {model_name} listening on http://{host}:{port}')
+    try:
+        server.serve_forever()
+    except KeyboardInterrupt:
+        pass
+    server.server_close()
+    service.close()
+
+
+if __name__ == '__main__':
+    serve(
+        sys.argv[1],
+        port=(int(sys.argv[2]) if len(sys.argv) > 2 else 8765),
+        beam_width=core_config.getint('REPAIR', 'beam_width', fallback=3)
+    )
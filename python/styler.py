@@ -3,16 +3,15 @@
 import ml
 import sys
 import glob
-from git import Repo
+import tempfile
+import multiprocessing
 from tqdm import tqdm
-import real
-from scipy import stats
 
 from core import *
 import checkstyle
-from Corpus import Corpus
-import synthetic
-import ml
+import translator
+import prediction_cache
+import proposal_store
 
 __model_dir = './models'
 __dataset_dir = '../datasets/real-errors'
@@ -24,52 +23,107 @@ def get_model_dir(name, only_formatting=False):
         return os.path.join(__model_dir, f'{name}.pt')
 
 
+def get_quantized_model_dir(name, only_formatting=False):
+    return get_model_dir(name, only_formatting=only_formatting)[:-len('.pt')] + '-q.pt'
+
+
+def get_exported_model_dir(name, only_formatting=False):
+    return get_model_dir(name, only_formatting=only_formatting)[:-len('.pt')] + '.ts'
+
+
+def get_exported_vocab_dir(name, only_formatting=False):
+    return get_model_dir(name, only_formatting=only_formatting)[:-len('.pt')] + '.vocab.json'
+
+
 def get_real_dataset_dir(name):
     return os.path.join(__dataset_dir, f'{name}')
 
 
-def tokenize_errors(file_path, errors):
+def get_window_policies(name):
+    """Load the window policies the model was trained with, None if it uses the default windows
+    """
+    path = os.path.join(__model_dir, f'{name}-window_policies.json')
+    if os.path.exists(path):
+        return open_json(path)
+    return None
+
+
+def tokenize_errors(file_path, errors, window_policies=None):
+    return tokenize_source_errors(open_file(file_path), errors, window_policies=window_policies)
+
+def tokenize_source_errors(source, errors, window_policies=None):
     inputs = []
     for error in errors:
         error['type'] = checkstyle_source_to_error_type(error['source'])
         if is_error_targeted(error):
-            tokenized_file, info = ml.tokenize_file_to_repair(file_path, error)
+            tokenized_file, info = ml.tokenize_source_to_repair(source, error, window_policies=window_policies)
             inputs += [ (" ".join(tokenized_file), info) ]
     return inputs
 
 def de_tokenize(original_file_path, info):
     pass
 
-def gen_translator(model_name, batch_size=5, only_formatting=False):
-    tmp_dir = './styler/tmp'
+def gen_batch_translator(model_name, n_best=5, batch_size=64, only_formatting=False, quantized=False, exported=False):
+    """Load the model once and return a function translating a list of tokenized errors
+    With exported, the TorchScript export of the model is used (no OpenNMT import)
+    """
+    if exported:
+        import compact_model
+        resident_translator = compact_model.Compact_Translator(
+            get_exported_model_dir(model_name, only_formatting=only_formatting),
+            get_exported_vocab_dir(model_name, only_formatting=only_formatting),
+            n_best=n_best,
+            batch_size=batch_size,
+            only_formatting=only_formatting,
+            num_threads=core_config.getint('REPAIR', 'num_threads', fallback=None)
+        )
+        return resident_translator.translate
     model_dir = get_model_dir(model_name, only_formatting=only_formatting)
-    ml.create_dir(tmp_dir)
-    tmp_input_file_name = 'input.txt'
-    tmp_input_file_path = os.path.join(tmp_dir, tmp_input_file_name)
-    tmp_output_file_name = 'output.txt'
-    tmp_output_file_path = os.path.join(tmp_dir, tmp_output_file_name)
-    def translator(input):
-        save_file(tmp_dir, tmp_input_file_name, input)
-        run_translate(model_dir, tmp_input_file_path, tmp_output_file_path, batch_size=batch_size)
-        return list(filter(lambda a: a!='', open_file(tmp_output_file_path).split('\n')))
-    return translator
-
-def run_translate(model_dir, input_file, output_file, batch_size=5):
-    open_nmt_dir = './OpenNMT-py'
-    translate_script = os.path.join(open_nmt_dir, 'translate.py')
-
-    options = [
-        f'-model {model_dir}',
-        f'-src {input_file}',
-        f'-output {output_file}',
-        f'-n_best {batch_size}'
-    ]
-    cmd = f'python {translate_script} {" ".join(options)}'
-
-    process = subprocess.Popen(cmd.split(" "), stdout=subprocess.PIPE)
-    output = process.communicate()[0]
-
-    return output
+    quantized_model_dir = get_quantized_model_dir(model_name, only_formatting=only_formatting) if quantized else None
+    resident_translator = translator.Translator(
+        model_dir,
+        n_best=n_best,
+        batch_size=batch_size,
+        only_formatting=only_formatting,
+        quantized_model_path=quantized_model_dir,
+        num_threads=core_config.getint('REPAIR', 'num_threads', fallback=None)
+    )
+    return resident_translator.translate
+
+def get_output_length(info):
+    """Number of whitespace tokens the only formatting model has to predict for an error
+    """
+    return info['to_token'] - info['from_token']
+
+def translate_all(translate_batch, inputs, batch_size=64, bucketing='length', lengths=None):
+    """Translate the tokenized errors by batches
+    :param inputs: dict key -> tokenized error
+    :param bucketing: 'length' to batch the errors of similar length together (less padding), 'none' to keep the order
+    :param lengths: dict key -> required output length, for the only formatting models
+    :return: dict key -> n best translations
+    """
+    keys = list(inputs.keys())
+    if bucketing == 'length':
+        keys = sorted(keys, key=lambda key: len(inputs[key].split(' ')))
+    if lengths is None:
+        batches = [ keys[index:(index + batch_size)] for index in range(0, len(keys), batch_size) ]
+    else:
+        # the translator runs one beam search per required output length, so a batch only has one
+        batches = [
+            bucket[index:(index + batch_size)]
+            for length, bucket in sorted(group_by(lambda key: lengths[key], keys).items())
+            for index in range(0, len(bucket), batch_size)
+        ]
+    results = {}
+    for batch in tqdm(batches, desc='Translate'):
+        batch_inputs = [ inputs[key] for key in batch ]
+        if lengths is None:
+            translations = translate_batch(batch_inputs)
+        else:
+            translations = translate_batch(batch_inputs, lengths=[ lengths[key] for key in batch ])
+        for key, n_best in zip(batch, translations):
+            results[key] = n_best
+    return results
 
 def join_token(tokens):
     return ' '.join(tokens)
@@ -83,10 +137,17 @@ def print_translations(file_path, metadata_path, translate):
             print()
 
 def de_tokenize(file_path, info, new_tokens, only_formatting=False):
-    source_code = open_file(file_path)
+    return de_tokenize_source(open_file(file_path), info, new_tokens, only_formatting=only_formatting)
+
+def de_tokenize_source(source_code, info, new_tokens, only_formatting=False):
     result = ml.de_tokenize(source_code, info, new_tokens.split(' '), tabulations=False, only_formatting=only_formatting)
     return result
 
+def de_tokenize_edit(source_code, info, new_tokens, only_formatting=False):
+    """The text edit of the source a translation makes, see ml.de_tokenize_to_edit
+    """
+    return ml.de_tokenize_to_edit(source_code, info, new_tokens.split(' '), tabulations=False, only_formatting=only_formatting)
+
 def get_files_without_errors(checkstyle_result):
     return [ file for file, result in checkstyle_result.items() if len(result['errors']) == 0 ]
 
@@ -132,6 +193,7 @@ def create_corpus(dir, name, checkstyle_dir):
 def create_corpus_git(dir, commit, checkstyle_relative_dir):
     if dir.endswith('/'):
         dir = dir[:-1]
+    from git import Repo
     corpus_dir = f'./styler/{dir.split("/")[-1]}-corpus'
 
     repo = Repo(dir)
@@ -198,21 +260,117 @@ def reverse_collection(collection, key_func=None):
             result[value] += [key]
     return result
 
-def select_the_best_repair(correct_repairs, original):
-    min_diff = 10000000
-    file = ''
-    for correct_repair in correct_repairs:
-        diff_size = java_lang_utils.compute_diff_size(original, correct_repair)
-        if diff_size < min_diff:
-            file = correct_repair
-    return file
+def select_the_best_proposal(store, id, proposal_ids):
+    """Select the proposal with the smallest diff to the original
+    Ties are broken by the whitespace distance, then by the order of proposal_ids (beam rank)
+    """
+    ranking = java_lang_utils.rank_repairs(store.get_original(id)[1], [ store.get_proposal(id, proposal_id) for proposal_id in proposal_ids ])
+    return proposal_ids[ranking[0][0]]
+
+def get_predicted_diff_size(info, translation, only_formatting=False):
+    """Number of whitespace tokens of the window a proposal changes
+    """
+    new_white_space_tokens = translation.split(' ')
+    if not only_formatting:
+        new_white_space_tokens = new_white_space_tokens[1::2]
+    old_white_space_tokens = info['tokens_errored_in_tag'][1::2]
+    return sum([ 1 for old, new in zip(old_white_space_tokens, new_white_space_tokens) if old != new ])
+
+def order_proposals(info, n_best, verification='rank', only_formatting=False):
+    """Order in which the proposals of an error are verified
+    :param verification: 'rank' for the beam order, 'diff' for the smallest predicted diff first
+    :return: list of (proposal_id, translation)
+    """
+    proposals = list(enumerate(n_best))
+    if verification == 'diff':
+        proposals = sorted(proposals, key=lambda proposal: (get_predicted_diff_size(info, proposal[1], only_formatting=only_formatting), proposal[0]))
+    return proposals
+
+def verify_all(store, checkstyle_rules, proposals, work_dir=None):
+    """Check every proposal and keep, for each error, the passing one with the smallest diff
+    :param proposals: list of (id, proposal id) of the store
+    :return: dict id -> proposal id of the selected proposal
+    """
+    passing = {}
+    for id, proposal_id in store.check(checkstyle_rules, proposals, work_dir=work_dir):
+        passing.setdefault(id, []).append(proposal_id)
+    return {
+        id:select_the_best_proposal(store, id, sorted(proposal_ids))
+        for id, proposal_ids in passing.items()
+    }
+
+def verify_in_rounds(store, checkstyle_rules, pending, add_proposal, work_dir=None):
+    """Check the proposals in order and stop, for each error, at the first parseable and checkstyle clean one.
+    Each round checks the next proposal of every unresolved error in a single checkstyle run.
+    :param pending: dict id -> ordered list of (proposal_id, translation)
+    :param add_proposal: function (id, proposal_id, translation) adding the proposal to the store
+    :return: dict id -> proposal id of the accepted proposal, number of checked proposals
+    """
+    final_repairs = {}
+    number_of_checks = 0
+    while pending:
+        proposals = []
+        for id, ordered_proposals in pending.items():
+            proposal_id, translation = ordered_proposals[0]
+            add_proposal(id, proposal_id, translation)
+            proposals.append((id, proposal_id))
+        number_of_checks += len(proposals)
+        for id, proposal_id in store.check(checkstyle_rules, proposals, work_dir=work_dir):
+            final_repairs[id] = proposal_id
+        pending = {
+            id:ordered_proposals[1:]
+            for id, ordered_proposals in pending.items()
+            if id not in final_repairs and len(ordered_proposals) > 1
+        }
+    return final_repairs, number_of_checks
+
+def get_translator_model_dir(model_name, only_formatting=False, quantized=False, exported=False):
+    """Path of the model file the translator actually loads
+    """
+    if exported:
+        return get_exported_model_dir(model_name, only_formatting=only_formatting)
+    if quantized:
+        return get_quantized_model_dir(model_name, only_formatting=only_formatting)
+    return get_model_dir(model_name, only_formatting=only_formatting)
+
+def gen_repair_translator(model_name, only_formatting=False, batch_size=64, quantized=False, exported=False, cache_path=None, cache_size=100000):
+    """Batch translator of the repair, behind the translation cache when cache_path is set
+    :return: (translate_batch, cache or None)
+    """
+    translate_batch = gen_batch_translator(model_name, n_best=5, batch_size=batch_size, only_formatting=only_formatting, quantized=quantized, exported=exported)
+    if not cache_path:
+        return translate_batch, None
+    cache = prediction_cache.Prediction_Cache(cache_path, max_entries=cache_size)
+    model_checksum = prediction_cache.compute_checksum(get_translator_model_dir(model_name, only_formatting=only_formatting, quantized=quantized, exported=exported))
+    return prediction_cache.gen_cached_translator(translate_batch, cache, model_checksum, 5), cache
+
+def get_translator_settings(model_name, only_formatting=True):
+    """Settings of the [REPAIR] section for gen_repair_translator, the quantized and
+    exported models are only used when they exist
+    """
+    return {
+        'batch_size': core_config.getint('REPAIR', 'batch_size', fallback=64),
+        'quantized': core_config.getboolean('REPAIR', 'quantized', fallback=False) and os.path.exists(get_quantized_model_dir(model_name, only_formatting=only_formatting)),
+        'exported': core_config.getboolean('REPAIR', 'exported', fallback=False) and os.path.exists(get_exported_model_dir(model_name, only_formatting=only_formatting)),
+        'cache_path': core_config.get('REPAIR', 'cache', fallback=None),
+        'cache_size': core_config.getint('REPAIR', 'cache_size', fallback=100000)
+    }
 
-def repair_files(dir, dir_files, model_name, only_formatting=False):
+def close_cache(dir, cache):
+    cache_stats = cache.get_stats()
+    cache.close()
+    print(f'Translation cache: {cache_stats["hits"]} hits, {cache_stats["misses"]} misses ({cache_stats["hit_rate"]:.1%})')
+    save_json(dir, 'cache_stats.json', cache_stats)
+
+def repair_files(dir, dir_files, model_name, only_formatting=False, batch_size=64, bucketing='length', quantized=False, exported=False, cache_path=None, cache_size=100000, verification='all'):
+    """Repair the files of dir_files
+    :param verification: 'all' checks every proposal and keeps the smallest diff,
+    'rank' and 'diff' stop at the first passing proposal in beam order or in predicted diff size order
+    """
     # set the dirs
     target = os.path.join(dir, 'repair-attempt')
     target_final = os.path.join(dir, 'files-repaired')
     checkstyle_rules = os.path.join(dir_files, 'checkstyle.xml')
-    waste = os.path.join(dir, 'waste')
 
     # yet we focus on single error files
     # TODO : Improve it
@@ -220,45 +378,450 @@ def repair_files(dir, dir_files, model_name, only_formatting=False):
     
     # create the folders
     create_dir(target)
-    create_dir(waste)
+    store = proposal_store.create_store(dir)
 
     # Init of the translator
-    translate = gen_translator(model_name, batch_size=5, only_formatting=only_formatting)
+    translate_batch, cache = gen_repair_translator(model_name, only_formatting=only_formatting, batch_size=batch_size, quantized=quantized, exported=exported, cache_path=cache_path, cache_size=cache_size)
+    window_policies = get_window_policies(model_name)
 
     list_of_fileids = list_folders(dir_files)
     number_of_files = len(list_of_fileids)
     #list_of_fileids = []
-    for folder_id in tqdm(list_of_fileids):
+
+    # tokenize every error of every file
+    sources = {}
+    inputs = {}
+    infos = {}
+    for folder_id in tqdm(list_of_fileids, desc='Tokenize'):
         file_path = glob.glob(f'{dir_files}/{folder_id}/*.java')[0]
+        sources[folder_id] = (file_path.split('/')[-1], open_file(file_path))
         metadata_path = f'{dir_files}/{folder_id}/metadata.json'
-        for error_id, error in enumerate(tokenize_errors(file_path, open_json(metadata_path)['errors'])):
+        for error_id, error in enumerate(tokenize_errors(file_path, open_json(metadata_path)['errors'], window_policies=window_policies)):
             tokenized_errors, info = error
-            for proposal_id, translation in enumerate(translate(tokenized_errors)):
-                de_tokenized_translation = de_tokenize(file_path, info, translation, only_formatting=only_formatting)
-                folder = f'{target}/batch_{proposal_id}/{int(folder_id) + error_id * number_of_files}'
-                create_dir(folder)
-                save_file(folder, file_path.split('/')[-1], de_tokenized_translation)
-
-    move_parse_exception_files(target, waste)
-    checkstyle_result, number_of_errors = checkstyle.check(checkstyle_rules, target, only_targeted=True)
-    #json_pp(checkstyle_result)
-    #save_json('./', 'test.json', checkstyle_result)
-    files_properly_repaired = reverse_collection(get_batch_results(checkstyle_result))
-    #print(files_properly_repaired)
-    final_repairs = {
-        id:select_the_best_repair(
-            [ glob.glob(f'{target}/batch_{batch}/{id}/*.java')[0] for batch in repairs ],
-            glob.glob(f'{dir_files}/{int(id) % number_of_files}/*.java')[0]
-        )
-        for id, repairs
-        in files_properly_repaired.items()
-    }
+            inputs[(folder_id, error_id)] = tokenized_errors
+            infos[(folder_id, error_id)] = info
+
+    # translate them all by batches
+    lengths = { key:get_output_length(info) for key, info in infos.items() } if only_formatting else None
+    translations = translate_all(translate_batch, inputs, batch_size=batch_size, bucketing=bucketing, lengths=lengths)
+
+    repair_ids = { key:str(int(key[0]) + key[1] * number_of_files) for key in translations.keys() }
+    keys = { repair_id:key for key, repair_id in repair_ids.items() }
+    for folder_id in set(key[0] for key in repair_ids.keys()):
+        store.add_original(folder_id, *sources[folder_id])
+    for key, repair_id in repair_ids.items():
+        store.add_error(repair_id, key[0])
+    def add_proposal(id, proposal_id, translation):
+        store.add_proposal(id, proposal_id, de_tokenize_edit(sources[keys[id][0]][1], infos[keys[id]], translation, only_formatting=only_formatting))
+
+    if verification == 'all':
+        proposals = []
+        for key, n_best in tqdm(translations.items(), desc='De-tokenize'):
+            for proposal_id, translation in enumerate(n_best):
+                add_proposal(repair_ids[key], proposal_id, translation)
+                proposals.append((repair_ids[key], proposal_id))
+        final_repairs = verify_all(store, checkstyle_rules, proposals, work_dir=target)
+    else:
+        pending = {
+            repair_ids[key]:order_proposals(infos[key], n_best, verification=verification, only_formatting=only_formatting)
+            for key, n_best in translations.items()
+        }
+        final_repairs, number_of_checks = verify_in_rounds(store, checkstyle_rules, pending, add_proposal, work_dir=target)
+        print(f'{number_of_checks} proposals checked for {len(translations)} errors')
     json_pp(final_repairs)
-    for id, path in final_repairs.items():
-        folder = create_dir(f'{target_final}/{id}')
-        shutil.copy(path, folder)
+    store.export(target_final, final_repairs.items())
+    json_pp(store.get_stats())
+    store.close()
+
+    if cache:
+        close_cache(dir, cache)
+
+def tokenize_file(dir_files, window_policies, folder_id):
+    """Tokenize every error of a file of dir_files
+    :return: [(folder_id, file name, source, list of (tokenized error, info))]
+    """
+    file_path = glob.glob(f'{dir_files}/{folder_id}/*.java')[0]
+    source = open_file(file_path)
+    errors = open_json(f'{dir_files}/{folder_id}/metadata.json')['errors']
+    return [ (folder_id, file_path.split('/')[-1], source, list(tokenize_source_errors(source, errors, window_policies=window_policies))) ]
+
+def de_tokenize_proposals(verification, only_formatting, item):
+    """De-tokenize the n best translations of an error in their verification order
+    :return: [(id, list of (proposal_id, edit))]
+    """
+    id, source, info, n_best = item
+    return [ (id, [
+        (proposal_id, de_tokenize_edit(source, info, translation, only_formatting=only_formatting))
+        for proposal_id, translation in order_proposals(info, n_best, verification=verification, only_formatting=only_formatting)
+    ]) ]
+
+def repair_files_pipelined(dir, dir_files, model_name, only_formatting=False, batch_size=64, bucketing='length', quantized=False, exported=False, cache_path=None, cache_size=100000, verification='all', workers=2, queue_size=256, verify_batch_size=256):
+    """Same repair as repair_files, with the tokenization, the translation, the de-tokenization
+    and the checkstyle verification running concurrently as the stages of a pipeline.
+    The tokenization and the de-tokenization run in processes.
+    """
+    import pipeline
+    from functools import partial
+
+    # set the dirs
+    target = os.path.join(dir, 'repair-attempt')
+    target_final = os.path.join(dir, 'files-repaired')
+    checkstyle_rules = os.path.join(dir_files, 'checkstyle.xml')
+    dir_files = os.path.join(dir_files, f'./1')
+    create_dir(target)
+    store = proposal_store.create_store(dir)
+
+    translate_batch, cache = gen_repair_translator(model_name, only_formatting=only_formatting, batch_size=batch_size, quantized=quantized, exported=exported, cache_path=cache_path, cache_size=cache_size)
+    window_policies = get_window_policies(model_name)
+
+    list_of_fileids = list_folders(dir_files)
+    number_of_files = len(list_of_fileids)
+
+    def translate(files):
+        # the store is only written by the threads of the main process
+        inputs = {}
+        items = {}
+        for folder_id, file_name, source, tokenized in files:
+            store.add_original(folder_id, file_name, source)
+            for error_id, (tokenized_errors, info) in enumerate(tokenized):
+                id = str(int(folder_id) + error_id * number_of_files)
+                store.add_error(id, folder_id)
+                inputs[id] = tokenized_errors
+                items[id] = (source, info)
+        lengths = { id:get_output_length(info) for id, (source, info) in items.items() } if only_formatting else None
+        translations = translate_all(translate_batch, inputs, batch_size=batch_size, bucketing=bucketing, lengths=lengths)
+        return [ (id, items[id][0], items[id][1], n_best) for id, n_best in translations.items() ]
+
+    def verify(items):
+        # all the proposals of an error are verified in the same batch
+        for id, proposals in items:
+            for proposal_id, edit in proposals:
+                store.add_proposal(id, proposal_id, edit)
+        if verification == 'all':
+            proposals = [ (id, proposal_id) for id, proposals in items for proposal_id, edit in proposals ]
+            return list(verify_all(store, checkstyle_rules, proposals, work_dir=target).items())
+        pending = { id:proposals for id, proposals in items if proposals }
+        final_repairs, number_of_checks = verify_in_rounds(store, checkstyle_rules, pending, lambda id, proposal_id, edit: None, work_dir=target)
+        return list(final_repairs.items())
+
+    repair_pipeline = pipeline.Pipeline([
+        pipeline.Stage('tokenize', partial(tokenize_file, dir_files, window_policies), workers=workers, processes=True),
+        # several batches are collected so that the errors can be bucketed by length
+        pipeline.Stage('translate', translate, batch_size=(batch_size * 4 if bucketing == 'length' else batch_size)),
+        pipeline.Stage('de-tokenize', partial(de_tokenize_proposals, verification, only_formatting), workers=workers, processes=True),
+        pipeline.Stage('verify', verify, batch_size=verify_batch_size, timeout=1)
+    ], queue_size=queue_size)
+    results, metrics = repair_pipeline.run(list_of_fileids)
+
+    final_repairs = dict(results)
+    json_pp(final_repairs)
+    store.export(target_final, final_repairs.items())
+    json_pp(store.get_stats())
+    store.close()
+    json_pp(metrics)
+    save_json(dir, 'pipeline_metrics.json', metrics)
+    if cache:
+        close_cache(dir, cache)
+
+def has_java_files(dir):
+    return len(glob.glob(f'{dir}/**/*.java', recursive=True)) > 0
+
+def get_error_position(error):
+    return (int(error['line']), int(error.get('column', 0) or 0))
+
+def get_line_edit(source, edit):
+    """Lines of a text edit of the source
+    :return: (first line, last line before the edit, last line after the edit)
+    """
+    start, end, replacement = edit
+    first_line = source.count('\n', 0, start) + 1
+    return (first_line, first_line + source.count('\n', start, end), first_line + replacement.count('\n'))
+
+def map_line(line, line_edits):
+    """Lines the line can be on after the line edits (see get_line_edit)
+    :return: (first line, last line), a line changed by an edit can be on any of its new lines
+    """
+    first, last = line, line
+    for first_line, old_last_line, new_last_line in line_edits:
+        shift = new_last_line - old_last_line
+        first = first + shift if first > old_last_line else (first_line if first >= first_line else first)
+        last = last + shift if last > old_last_line else (new_last_line if last >= first_line else last)
+    return (first, last)
+
+def match_errors(tracked, errors, line_edit):
+    """Match the errors of a candidate to the errors of the state it comes from,
+    by checkstyle module, message and line (moved by the edit)
+    :param tracked: list of (original error, current error) of the state
+    :param line_edit: the line edit from the state to the candidate
+    :return: (list of (original error, current error) of the candidate, list of the repaired original errors),
+    None if the candidate has an error the state does not have
+    """
+    available = [
+        (original, current['source'], current.get('message'), map_line(int(current['line']), [line_edit]))
+        for original, current in tracked
+    ]
+    new_tracked = []
+    for error in errors:
+        line = int(error['line'])
+        matches = [
+            index
+            for index, (original, source, message, (first, last)) in enumerate(available)
+            if source == error['source'] and message == error.get('message') and first <= line <= last
+        ]
+        if not matches:
+            return None
+        new_tracked.append((available.pop(matches[0])[0], error))
+    repaired = [ original for original, source, message, lines in available ]
+    return new_tracked, repaired
+
+def repair_sources(files, translate_batch, checkstyle_rules, target, window_policies=None, only_formatting=False, batch_size=64, bucketing='length', beam_width=3, keep_error=None, run_checkstyle=None):
+    """Repair the errors of sources one after the other in memory: each step tries to fix one remaining
+    error of every state (the next one when the previous ones could not be fixed), one checkstyle run
+    re-locates the errors of all the candidates, the candidates removing errors without adding any are
+    kept and the beam_width best states (fewest errors, smallest diff, beam ranks) go to the next step.
+    :param files: dict file id -> (file name, source, targeted errors)
+    :param keep_error: function (file id, error, line edits applied to the source) -> whether a checkstyle error has to be repaired, all by default
+    :param run_checkstyle: function with the signature of checkstyle.check, a Checkstyle_Daemon check for instance
+    :return: dict file id -> best state (source, remaining errors, beam ranks of the applied fixes, repaired original errors)
+    """
+    run_checkstyle = run_checkstyle or checkstyle.check
+
+    def sort_tracked(tracked):
+        return sorted(tracked, key=lambda errors: get_error_position(errors[1]))
+
+    def get_rank(file_id, state):
+        return (len(state['errors']), java_lang_utils.compute_line_diff_size(files[file_id][1], state['source']), state['ranks'])
+
+    states = {
+        file_id:[ { 'source': source, 'errors': sort_tracked([ (error, error) for error in errors ]), 'ranks': (), 'repaired': (), 'line_edits': (), 'skipped': 0 } ]
+        for file_id, (file_name, source, errors) in files.items()
+        if errors
+    }
+    best_states = { file_id:file_states[0] for file_id, file_states in states.items() }
+
+    while states:
+        # tokenize the first remaining error not skipped of every state
+        inputs = {}
+        infos = {}
+        for file_id, file_states in states.items():
+            for state_id, state in enumerate(file_states):
+                error = state['errors'][state['skipped']][1]
+                for tokenized_errors, info in tokenize_source_errors(state['source'], [error], window_policies=window_policies):
+                    inputs[(file_id, state_id)] = tokenized_errors
+                    infos[(file_id, state_id)] = info
+        lengths = { key:get_output_length(info) for key, info in infos.items() } if only_formatting else None
+        translations = translate_all(translate_batch, inputs, batch_size=batch_size, bucketing=bucketing, lengths=lengths)
+
+        # apply every proposal in memory and check the parseable ones at once
+        candidates = {}
+        checkstyle_result = {}
+        with tempfile.TemporaryDirectory(dir=create_dir(target)) as step_dir:
+            for (file_id, state_id), n_best in translations.items():
+                source = states[file_id][state_id]['source']
+                for proposal_id, translation in enumerate(n_best):
+                    edit = de_tokenize_edit(source, infos[(file_id, state_id)], translation, only_formatting=only_formatting)
+                    if edit is None:
+                        continue
+                    new_source = java_lang_utils.apply_edit(source, edit)
+                    if new_source != source and java_lang_utils.check_well_formed_source(new_source):
+                        candidate_id = f'{file_id}_{state_id}_{proposal_id}'
+                        save_file(create_dir(os.path.join(step_dir, candidate_id)), files[file_id][0], new_source)
+                        candidates[candidate_id] = (file_id, state_id, proposal_id, new_source, get_line_edit(source, edit))
+            if candidates:
+                checkstyle_result, number_of_errors = run_checkstyle(checkstyle_rules, step_dir, only_targeted=True)
+
+        # keep the candidates removing errors without adding any
+        next_states = {}
+        progressed = set()
+        for file, result in checkstyle_result.items():
+            file_id, state_id, proposal_id, new_source, line_edit = candidates[file.split('/')[-2]]
+            state = states[file_id][state_id]
+            line_edits = state['line_edits'] + (line_edit,)
+            errors = [ error for error in result['errors'] if keep_error is None or keep_error(file_id, error, line_edits) ]
+            matched = match_errors(state['errors'], errors, line_edit)
+            if matched is None or len(matched[0]) == len(state['errors']):
+                continue
+            tracked, repaired = matched
+            progressed.add((file_id, state_id))
+            next_states.setdefault(file_id, {}).setdefault((new_source, state['skipped']), {
+                'source': new_source,
+                'errors': sort_tracked(tracked),
+                'ranks': state['ranks'] + (proposal_id,),
+                'repaired': state['repaired'] + tuple(repaired),
+                'line_edits': line_edits,
+                'skipped': min(state['skipped'], len(tracked))
+            })
+        # the states without any passing candidate try their next error
+        for file_id, file_states in states.items():
+            for state_id, state in enumerate(file_states):
+                if (file_id, state_id) not in progressed and state['skipped'] + 1 < len(state['errors']):
+                    next_states.setdefault(file_id, {}).setdefault((state['source'], state['skipped'] + 1), dict(state, skipped=state['skipped'] + 1))
+
+        states = {}
+        for file_id, file_states in next_states.items():
+            ranked = sorted(file_states.values(), key=lambda state: get_rank(file_id, state))
+            if get_rank(file_id, ranked[0]) < get_rank(file_id, best_states[file_id]):
+                best_states[file_id] = ranked[0]
+            ranked = [ state for state in ranked[:beam_width] if state['skipped'] < len(state['errors']) ]
+            if ranked:
+                states[file_id] = ranked
+    return {
+        file_id:(state['source'], [ current for original, current in state['errors'] ], state['ranks'], list(state['repaired']))
+        for file_id, state in best_states.items()
+    }
+
+def repair_files_iteratively(dir, dir_files, model_name, only_formatting=False, batch_size=64, bucketing='length', quantized=False, exported=False, cache_path=None, cache_size=100000, beam_width=3):
+    """Repair every error of the files of every dir_files/[number of errors] folder (see repair_sources)
+    """
+    # set the dirs
+    target = os.path.join(dir, 'repair-attempt')
+    target_final = os.path.join(dir, 'files-repaired')
+    checkstyle_rules = os.path.join(dir_files, 'checkstyle.xml')
+    create_dir(target)
+
+    translate_batch, cache = gen_repair_translator(model_name, only_formatting=only_formatting, batch_size=batch_size, quantized=quantized, exported=exported, cache_path=cache_path, cache_size=cache_size)
+    window_policies = get_window_policies(model_name)
+
+    # file id -> folder, file id -> (file name, original source, targeted errors)
+    folders = {}
+    files = {}
+    for errors_folder in sorted(list_folders(dir_files), key=int):
+        for folder_id in list_folders(os.path.join(dir_files, errors_folder)):
+            file_id = f'{errors_folder}_{folder_id}'
+            file_path = glob.glob(f'{dir_files}/{errors_folder}/{folder_id}/*.java')[0]
+            errors = [ error for error in open_json(f'{dir_files}/{errors_folder}/{folder_id}/metadata.json')['errors'] if is_error_targeted(error) ]
+            folders[file_id] = os.path.join(errors_folder, folder_id)
+            files[file_id] = (file_path.split('/')[-1], open_file(file_path), errors)
+
+    best_states = repair_sources(files, translate_batch, checkstyle_rules, target, window_policies=window_policies, only_formatting=only_formatting, batch_size=batch_size, bucketing=bucketing, beam_width=beam_width)
+
+    # the partially repaired files are saved apart, with their remaining errors
+    target_partial = os.path.join(dir, 'files-partially-repaired')
+    report = {}
+    for file_id, (source, errors, ranks, repaired) in best_states.items():
+        report[file_id] = { 'remaining_errors': len(errors), 'repaired_errors': len(repaired), 'ranks': list(ranks) }
+        if len(errors) == 0:
+            save_file(create_dir(os.path.join(target_final, folders[file_id])), files[file_id][0], source)
+        elif len(repaired) > 0:
+            folder = create_dir(os.path.join(target_partial, folders[file_id]))
+            save_file(folder, files[file_id][0], source)
+            save_json(folder, 'metadata.json', { 'errors': errors })
+    json_pp(report)
+    save_json(dir, 'iterative_repair.json', report)
+    if cache:
+        close_cache(dir, cache)
+    return report
+
+def get_changed_lines(repo, base, head, path, base_path=None):
+    """Lines of the file at head added or modified since base
+    :param base_path: the path at base of a renamed file
+    :return: list of (first line, last line)
+    """
+    ranges = []
+    paths = [path] if base_path is None else [base_path, path]
+    for line in repo.git.diff('-U0', '-M', base, head, '--', *paths).split('\n'):
+        if line.startswith('@@'):
+            new_range = line.split(' ')[2][1:].split(',')
+            start = int(new_range[0])
+            count = int(new_range[1]) if len(new_range) > 1 else 1
+            if count > 0:
+                ranges.append((start, start + count - 1))
+    return ranges
+
+def git_show(repo_dir, commit, path):
+    """Content of a file at a commit, trailing new line included
+    """
+    process = subprocess.Popen(['git', '-C', repo_dir, 'show', f'{commit}:{path}'], stdout=subprocess.PIPE)
+    return process.communicate()[0].decode('utf-8')
+
+def is_in_ranges(line, ranges):
+    return any([ start <= line <= end for start, end in ranges ])
+
+def get_patch(path, original, source):
+    """Unified diff of a file, as git apply expects it
+    """
+    import difflib
+    patch = ''
+    for line in difflib.unified_diff(original.splitlines(keepends=True), source.splitlines(keepends=True), fromfile=f'a/{path}', tofile=f'b/{path}'):
+        patch += line
+        if not line.endswith('\n'):
+            patch += '\n\\ No newline at end of file\n'
+    return patch
+
+def repair_diff(repo_dir, commit_range, model_name, checkstyle_relative_dir='checkstyle.xml'):
+    """Repair the errors of the lines changed in a commit range and save the repairs as a patch
+    :param commit_range: [base]..[head]
+    :return: the path of the patch
+    """
+    from git import Repo
+    base, head = commit_range.split('..')
+    repo = Repo(repo_dir)
+    dir = create_dir(f'./styler/repair-diff/{repo_dir.rstrip("/").split("/")[-1]}-{repo.git.rev_parse(head)[:12]}')
+    input_dir = os.path.join(dir, 'input')
+    if os.path.exists(input_dir):
+        shutil.rmtree(input_dir)
+
+    checkstyle_content = git_show(repo_dir, head, checkstyle_relative_dir)
+    if not checkstyle_content.strip():
+        raise ValueError(f'No checkstyle configuration {checkstyle_relative_dir} in {head}')
+
+    # the changed java files, as they are at head, the renamed files with their new path
+    changes = [
+        line.split('\t')
+        for line in repo.git.diff('--name-status', '-M', '--diff-filter=AMR', base, head).split('\n')
+        if line
+    ]
+    base_paths = { change[-1]:(change[1] if change[0].startswith('R') else None) for change in changes }
+    paths = [ path for path in base_paths if path.endswith('.java') ]
+    changed_lines = {}
+    for id, path in enumerate(paths):
+        changed_lines[str(id)] = get_changed_lines(repo, base, head, path, base_path=base_paths[path])
+        save_file(create_dir(os.path.join(input_dir, str(id))), path.split('/')[-1], git_show(repo_dir, head, path))
+    checkstyle_rules = save_file(dir, 'checkstyle.xml', checkstyle_content)
+
+    # checkstyle on the changed files only, the errors outside of the changed lines are ignored
+    # (the changed lines follow the edits of the repair)
+    def keep_error(file_id, error, line_edits=()):
+        ranges = [ (map_line(start, line_edits)[0], map_line(end, line_edits)[1]) for start, end in changed_lines[file_id] ]
+        return is_in_ranges(int(error['line']), ranges)
+    files = {}
+    if paths:
+        checkstyle_result, number_of_errors = checkstyle.check(checkstyle_rules, input_dir, only_targeted=True)
+        for file, result in checkstyle_result.items():
+            file_id = file.split('/')[-2]
+            errors = [ error for error in result['errors'] if keep_error(file_id, error) ]
+            files[file_id] = (file.split('/')[-1], open_file(file), errors)
+    print(f'{len(paths)} changed files, {sum([ len(errors) for file_name, source, errors in files.values() ])} errors in the changed lines')
+
+    translate_batch, cache = gen_repair_translator(model_name, only_formatting=True, **get_translator_settings(model_name))
+    best_states = repair_sources(
+        files,
+        translate_batch,
+        checkstyle_rules,
+        os.path.join(dir, 'repair-attempt'),
+        window_policies=get_window_policies(model_name),
+        only_formatting=True,
+        batch_size=core_config.getint('REPAIR', 'batch_size', fallback=64),
+        beam_width=core_config.getint('REPAIR', 'beam_width', fallback=3),
+        keep_error=keep_error
+    )
+
+    patch = ''
+    report = {}
+    for file_id, (source, errors, ranks, repaired) in sorted(best_states.items(), key=lambda item: int(item[0])):
+        path = paths[int(file_id)]
+        original = files[file_id][1]
+        report[path] = { 'repaired_errors': len(repaired), 'remaining_errors': len(errors) }
+        if source != original:
+            patch += get_patch(path, original, source)
+    json_pp(report)
+    save_json(dir, 'report.json', report)
+    if cache:
+        close_cache(dir, cache)
+    return save_file(dir, 'repair.patch', patch)
 
 def lits_and_create_corpora():
+    import real
     repos = ['ONSdigital/rm-notify-gateway']#list(open_json('./travis/commits.json').keys()) + list(open_json('./travis/commits_oss.json').keys())
     for info in tqdm(real.get_repo_with_checkstyle(repos), desc='Total'):
         # print(info)
@@ -273,7 +836,68 @@ def repair_real(name):
     directory = f'./styler/repairs/{name}'
     create_dir(directory)
     dir_files = get_real_dataset_dir(name)
-    repair_files(directory, dir_files, name, only_formatting=True)
+    batch_size = core_config.getint('REPAIR', 'batch_size', fallback=64)
+    bucketing = core_config.get('REPAIR', 'bucketing', fallback='length')
+    quantized = core_config.getboolean('REPAIR', 'quantized', fallback=False) and os.path.exists(get_quantized_model_dir(name, only_formatting=True))
+    exported = core_config.getboolean('REPAIR', 'exported', fallback=False) and os.path.exists(get_exported_model_dir(name, only_formatting=True))
+    cache_path = core_config.get('REPAIR', 'cache', fallback=None)
+    cache_size = core_config.getint('REPAIR', 'cache_size', fallback=100000)
+    if core_config.getboolean('REPAIR', 'iterative', fallback=False):
+        beam_width = core_config.getint('REPAIR', 'beam_width', fallback=3)
+        repair_files_iteratively(directory, dir_files, name, only_formatting=True, batch_size=batch_size, bucketing=bucketing, quantized=quantized, exported=exported, cache_path=cache_path, cache_size=cache_size, beam_width=beam_width)
+        return
+    if core_config.get('REPAIR', 'engine', fallback='sequential') == 'pipeline':
+        repair_files_pipelined(
+            directory, dir_files, name, only_formatting=True, batch_size=batch_size, bucketing=bucketing, quantized=quantized, exported=exported, cache_path=cache_path, cache_size=cache_size,
+            verification=core_config.get('REPAIR', 'verification', fallback='all'),
+            workers=core_config.getint('REPAIR', 'workers', fallback=2),
+            queue_size=core_config.getint('REPAIR', 'queue_size', fallback=256),
+            verify_batch_size=core_config.getint('REPAIR', 'verify_batch_size', fallback=256)
+        )
+        return
+    verification = core_config.get('REPAIR', 'verification', fallback='all')
+    repair_files(directory, dir_files, name, only_formatting=True, batch_size=batch_size, bucketing=bucketing, quantized=quantized, exported=exported, cache_path=cache_path, cache_size=cache_size, verification=verification)
+
+
+def export(name):
+    """Export the model as TorchScript for a fast cold start of the repair
+    """
+    import compact_model
+    return compact_model.export_model(
+        get_model_dir(name, only_formatting=True),
+        get_exported_model_dir(name, only_formatting=True),
+        get_exported_vocab_dir(name, only_formatting=True)
+    )
+
+
+def train_from_ids(tokens_dir, name):
+    """Train the model on the token id arrays (ml.py gen-ids), saved as an exported model
+    """
+    import compact_model
+    return compact_model.train_model(
+        tokens_dir,
+        get_exported_model_dir(name, only_formatting=True),
+        get_exported_vocab_dir(name, only_formatting=True)
+    )
+
+
+def quantize(name, tokens_dir=None):
+    """Quantize the model and compare it with the original one on the testing split
+    """
+    if tokens_dir is None:
+        tokens_dir = f'./styler/{name}-tokens'
+    model_dir = get_model_dir(name, only_formatting=True)
+    quantized_model_dir = translator.quantize_model(model_dir, get_quantized_model_dir(name, only_formatting=True))
+    comparison = translator.compare_quantized(
+        model_dir,
+        quantized_model_dir,
+        os.path.join(tokens_dir, 'testing-I.txt'),
+        os.path.join(tokens_dir, 'testing-O.txt'),
+        only_formatting=True
+    )
+    json_pp(comparison)
+    save_json(__model_dir, f'{name}-of-q.json', comparison)
+    return comparison
 
 
 def main(args):
@@ -284,7 +908,25 @@ def main(args):
             datasets = args[2:]
         for dataset in tqdm(datasets):
             repair_real(dataset)
+    if args[1] == 'quantize':
+        quantize(args[2], tokens_dir=(args[3] if len(args) > 3 else None))
+    if args[1] == 'repair-diff':
+        print(repair_diff(args[2], args[3], args[4], *args[5:6]))
+    if args[1] == 'serve':
+        import repair_server
+        repair_server.serve(
+            args[2],
+            host=core_config.get('SERVER', 'host', fallback='127.0.0.1'),
+            port=core_config.getint('SERVER', 'port', fallback=8765),
+            beam_width=core_config.getint('REPAIR', 'beam_width', fallback=3)
+        )
+    if args[1] == 'export':
+        print(export(args[2]))
+    if args[1] == 'train-ids':
+        print(train_from_ids(args[2], args[3]))
     if args[1] == 'gen_training_data':
+        from Corpus import Corpus
+        import synthetic
         project_path = args[2]
         checkstyle_file_path = args[3]
         project_name = args[4]
@@ -295,8 +937,9 @@ def main(args):
         )
         corpus = Corpus(corpus_dir, project_name)
         share = { key:core_config['DATASHARE'].getint(key) for key in ['learning', 'validation', 'testing'] }
-        synthetic.gen_dataset(corpus, share, target_dir=f'./styler/{project_name}-errors' )
-        ml.gen_IO(f'./styler/{project_name}-errors', f'./styler/{project_name}-tokens', only_formatting=True)
+        synthetic.gen_dataset(corpus, share, target_dir=f'./styler/{project_name}-errors', n_errors=synthetic.get_n_errors(), token_budget=synthetic.get_token_budget(), max_file_tokens=synthetic.get_max_file_tokens())
+        window_percentile = core_config.getfloat('SEQUENCE', 'window_percentile', fallback=None)
+        ml.gen_IO(f'./styler/{project_name}-errors', f'./styler/{project_name}-tokens', only_formatting=True, processes=multiprocessing.cpu_count(), window_percentile=window_percentile)
         pass
 
 if __name__ == "__main__":
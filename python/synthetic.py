@@ -2,7 +2,6 @@
 
 import java_lang_utils as jlu
 import checkstyle
-import subprocess
 import os
 from Corpus import *
 import shutil
@@ -14,14 +13,13 @@ from tqdm import tqdm
 import uuid
 from functools import reduce
 import java_lang_utils
-import graph_plot
 import copy
 import threading
+import hashlib
 
 from core import *
-import repair
-import styler
 import ml
+import synthetic_pack
 
 config = configparser.ConfigParser()
 config.read('config.ini')
@@ -95,6 +93,39 @@ class Synthetic_Checkstyle_Error:
     def load_errored(self):
         self.errored = open_file(self.get_errored_path())
 
+class Injection_Index:
+    """Generation-wide index of the injections already produced.
+    Shared by the workers of a generation, the key is the normalized injection:
+    the corpus file and the edit turning it into the errored file (see synthetic_pack.compute_patch),
+    whatever the operators and the order in which the edits were drawn.
+    """
+
+    def __init__(self):
+        self.seen = set()
+        self.duplicates = {}
+        self.lock = threading.Lock()
+
+    def get_key(self, file_path, original, errored):
+        normalized = (file_path, synthetic_pack.compute_patch(original, errored))
+        return hashlib.sha1(repr(normalized).encode('utf-8')).digest()
+
+    def add(self, goal, file_path, original, errored):
+        """Register the injection, returns False if it was already generated
+        """
+        key = self.get_key(file_path, original, errored)
+        with self.lock:
+            if key in self.seen:
+                self.duplicates[goal] = self.duplicates.get(goal, 0) + 1
+                return False
+            self.seen.add(key)
+            return True
+
+    def report(self):
+        return {
+            'unique': len(self.seen),
+            'duplicates': dict(self.duplicates)
+        }
+
 __experiments_dir = './experiments/ml'
 __base_dir = config['DEFAULT']['SYNTHETIC_DIR']
 
@@ -160,40 +191,113 @@ injection_operator_types={
 }
 
 def run_diff(fileA, fileB):
-    cmd = f'diff {fileA} {fileB}'
-    # print(cmd)
-    process = subprocess.Popen(cmd.split(" "), stdout=subprocess.PIPE)
-    output = process.communicate()[0]
-    return output.decode("utf-8")
-
-def gen_get_random_file(corpus, numbers):
+    return synthetic_pack.get_diff(open_file(fileA), open_file(fileB))
+
+def get_token_budget():
+    """Sequence length limits of the preprocessing (source, target)
+    """
+    return (
+        config.getint('SEQUENCE', 'src_seq_length', fallback=650),
+        config.getint('SEQUENCE', 'tgt_seq_length', fallback=105)
+    )
+
+def get_n_errors():
+    """Number of errors injected in every synthetic file
+    """
+    return config.getint('DATASHARE', 'n_errors', fallback=1)
+
+def get_max_file_tokens():
+    """Token count above which the corpus files are not used, no limit when unset
+    """
+    return config.getint('DATASHARE', 'max_file_tokens', fallback=None)
+
+def gen_get_random_file(corpus, numbers, weighted=False, max_file_tokens=None):
     files = list(corpus.files.values())
-    corpus_size = len(files)
-    shuffle_list = random.sample(list(range(corpus_size)), corpus_size) # random.shuffled() shuffle the list and does not returned the shuffled list
+    files_info = corpus.get_files_info()
+    # only the files javalang can parse, checked once in the corpus records
+    parseable = [ index for index, file in enumerate(files) if files_info[corpus.get_file_key(file)]['parseable'] ]
+    if max_file_tokens is not None:
+        parseable = [ index for index in parseable if files_info[corpus.get_file_key(files[index])]['token_count'] <= max_file_tokens ]
+    corpus_size = len(parseable)
+    shuffle_list = random.sample(parseable, corpus_size) # random.shuffled() shuffle the list and does not returned the shuffled list
     print(shuffle_list)
     total_numbers = sum(numbers.values())
     values = {}
+    weights = {}
     for goal in numbers.keys():
         to = round(numbers[goal]/total_numbers*corpus_size)
         values[goal] = shuffle_list[:to]
+        weights[goal] = [ files_info[corpus.get_file_key(files[index])]['token_count'] for index in values[goal] ]
         shuffle_list = shuffle_list[to:]
     print(values)
     def get_file(goal):
-        file = files[random.choice(values[goal])]
-        # check if we can parse the file
-        while not jlu.check_well_formed(file[2]):
-            file = files[random.choice(values[goal])]
-        return file
+        if weighted:
+            return files[random.choices(values[goal], weights=weights[goal])[0]]
+        return files[random.choice(values[goal])]
     return get_file
 
-def gen_errored(corpus, get_random_corpus_file, repo_name, goal, id, target_dir):
+def choose_injection(n_errors=1):
+    """Choose the injection operator(s), returns the operator(s) and the modification numbers
+    """
+    if n_errors == 1:
+        injection_operator = random.choice(list(injection_operator_types.keys()))
+        return injection_operator, injection_operator_types[injection_operator]
+    injection_operators = tuple(random.choice(list(injection_operator_types.keys())) for _ in range(n_errors))
+    modification_number = tuple(
+        sum(numbers)
+        for numbers in zip(*[ injection_operator_types[operator] for operator in injection_operators ])
+    )
+    return injection_operators, modification_number
+
+def are_sites_non_overlapping(modification, n_errors):
+    """Check that the n modifications were made, each one on a different line
+    """
+    lines = set([ position[0] for position in modification ])
+    return len(modification) == n_errors and len(lines) == n_errors
+
+def error_to_report(error):
+    report = {}
+    report['line'] = error['line']
+    if 'column' in error:
+        report['column'] = error['column']
+    report['message'] = error['message']
+    report['type'] = error['source'].split('.')[-1][:-5]
+    return report
+
+def fits_source_budget(tokens, modification, src_budget):
+    """Check, before running checkstyle, the context of the injection sites against the source budget.
+    The errors are reported on the lines of the injections, their context is the n_lines around them.
+    """
+    for line in set([ position[0] for position in modification ]):
+        location = ml.locate_error(tokens, { 'line': line, 'type': '' })
+        # a token and its whitespace per token of the context, and the two tags
+        if 2 * (location['end'] - location['start']) + 2 > src_budget:
+            return False
+    return True
+
+def fits_token_budget(file_path, errors, token_budget):
+    """Check that the context of every error fits the (source, target) token budget
+    """
+    src_budget, tgt_budget = token_budget
+    for error in errors:
+        tokens_errored, info = ml.tokenize_file_to_repair(file_path, error_to_report(error))
+        if len(tokens_errored) > src_budget or info['to_token'] - info['from_token'] > tgt_budget:
+            return False
+    return True
+
+def gen_errored(corpus, get_random_corpus_file, repo_name, goal, id, target_dir, injection_index=None, n_errors=1, token_budget=None):
+    """Generate an errored file. With n_errors > 1, n edits are injected on different
+    lines and only the candidates with exactly n errors are accepted, so no edit is left unflagged.
+    With a token budget (source, target), the sites whose context is too long are rejected,
+    first from the injection lines then, after checkstyle, from the errors.
+    """
     DEBUG = False
     folder = os.path.join(target_dir, f'./{goal}/{id}')
     file =  get_random_corpus_file(goal)
     file_dir = file[2]
     file_name = file[0].split('.')[0]
     done = False
-    error = None
+    errors = None
     ugly_file = ""
     max_attepts = 10
     attepts = 0
@@ -207,16 +311,41 @@ def gen_errored(corpus, get_random_corpus_file, repo_name, goal, id, target_dir)
         if os.path.exists(folder):
             shutil.rmtree(folder)
         create_dir(folder)
-        injection_operator = random.choice(list(injection_operator_types.keys()))
+        injection_operator, modification_number = choose_injection(n_errors)
         ugly_file = os.path.join(folder, f'./{file_name}.java')
-        modification = jlu.gen_ugly(file_dir, folder, modification_number=injection_operator_types[injection_operator])
+        modification = jlu.gen_ugly(file_dir, folder, modification_number=modification_number)
         if DEBUG:
             print(modification)
+        if n_errors > 1 and not are_sites_non_overlapping(modification, n_errors):
+            if DEBUG:
+                print('Overlapping injections')
+            attepts = attepts + 1
+            continue
+        original = open_file(file_dir)
+        errored = open_file(ugly_file)
+        if injection_index is not None and not injection_index.add(goal, file_dir, original, errored):
+            if DEBUG:
+                print('Duplicate injection')
+            attepts = attepts + 1
+            continue
         if not jlu.check_well_formed(ugly_file):
             if DEBUG:
                 print('Not well formed')
             attepts = attepts + 1
             continue
+        # the checks without checkstyle first, it is the slowest one
+        spaces_original, tokens_original = jlu.tokenize_with_white_space(original)
+        spaces_errored, tokens_errored = jlu.tokenize_with_white_space(errored)
+        if len(tokens_original) != len(tokens_errored):
+            if DEBUG:
+                print(f'Not the same length : orig {len(tokens_original)} vs {len(tokens_errored)}')
+            attepts = attepts + 1
+            continue
+        if token_budget is not None and not fits_source_budget(tokens_errored, modification, token_budget[0]):
+            if DEBUG:
+                print('Context too long')
+            attepts = attepts + 1
+            continue
         try:
             cs_result, number_of_errors = checkstyle.check(corpus.checkstyle, ugly_file)
         except:
@@ -224,19 +353,17 @@ def gen_errored(corpus, get_random_corpus_file, repo_name, goal, id, target_dir)
                 print('Cant run checkstule')
             attepts = attepts + 1
             continue
-        if number_of_errors != 1:
+        if number_of_errors != n_errors:
             if DEBUG:
                 print(f'{number_of_errors} errors')
             attepts = attepts + 1
             continue
-        spaces_original, tokens_original = jlu.tokenize_with_white_space(open_file(file_dir))
-        spaces_errored, tokens_errored = jlu.tokenize_with_white_space(open_file(ugly_file))
-        if len(tokens_original) != len(tokens_errored):
+        errors = list(cs_result.values())[0]['errors']
+        if token_budget is not None and not fits_token_budget(ugly_file, errors, token_budget):
             if DEBUG:
-                print(f'Not the same length : orig {len(tokens_original)} vs {len(tokens_errored)}')
+                print('Context too long')
             attepts = attepts + 1
             continue
-        error = list(cs_result.values())[0]['errors'][0]
         done = True
 
     original_file = os.path.join(folder, f'./{file_name}-orig.java')
@@ -246,16 +373,39 @@ def gen_errored(corpus, get_random_corpus_file, repo_name, goal, id, target_dir)
 
     report = {}
     report['injection_operator'] = injection_operator
-    report['line'] = error['line']
-    if 'column' in error:
-        report['column'] = error['column']
-    report['message'] = error['message']
-    report['type'] = error['source'].split('.')[-1][:-5]
+    report.update(error_to_report(errors[0]))
+    if n_errors > 1:
+        report['errors'] = [ error_to_report(error) for error in errors ]
 
     save_json(folder, 'metadata.json', report)
 
 
-def gen_dataset(corpus, numbers, target_dir=None):
+def report_duplicates(dir, injection_index):
+    """Print and save the number of duplicated injections skipped per split
+    """
+    report = injection_index.report()
+    for goal, count in report['duplicates'].items():
+        print(f'{goal}: {count} duplicated injections skipped')
+    save_json(dir, 'duplicates.json', report)
+    return report
+
+def pack_errored(pack, dir, goal, id):
+    """Move a generated sample into the pack
+    """
+    folder = os.path.join(dir, f'./{goal}/{id}')
+    pack.add_folder(goal, id, folder)
+    shutil.rmtree(folder)
+
+def close_pack(pack, dir, goals):
+    for name in ('repo.json', 'checkstyle.xml', 'duplicates.json'):
+        pack.add_file(name, open_file(os.path.join(dir, name)))
+    for goal in goals:
+        goal_dir = os.path.join(dir, goal)
+        if os.path.exists(goal_dir):
+            shutil.rmtree(goal_dir)
+    pack.close()
+
+def gen_dataset(corpus, numbers, target_dir=None, packed=False, weighted=False, n_errors=1, token_budget=None, max_file_tokens=None):
     repo_name = corpus.name
     if target_dir is None:
         dir = get_repo_dir(repo_name)
@@ -265,15 +415,22 @@ def gen_dataset(corpus, numbers, target_dir=None):
         shutil.rmtree(dir)
     create_dir(dir)
     save_json(dir, 'repo.json', corpus.info)
-    get_random_corpus_file = gen_get_random_file(corpus, numbers)
+    get_random_corpus_file = gen_get_random_file(corpus, numbers, weighted=weighted, max_file_tokens=max_file_tokens)
     shutil.copyfile(corpus.checkstyle, os.path.join(dir, f'./checkstyle.xml'))
+    injection_index = Injection_Index()
+    pack = synthetic_pack.Synthetic_Pack(synthetic_pack.get_pack_path(dir)) if packed else None
     for goal, number in numbers.items():
         for i in tqdm(range(number), desc=f'{repo_name}/{goal}'):
-            gen_errored(corpus, get_random_corpus_file, repo_name, goal, i, dir)
+            gen_errored(corpus, get_random_corpus_file, repo_name, goal, i, dir, injection_index=injection_index, n_errors=n_errors, token_budget=token_budget)
+            if pack:
+                pack_errored(pack, dir, goal, i)
+    report_duplicates(dir, injection_index)
+    if pack:
+        close_pack(pack, dir, numbers.keys())
     # copy_originals(corpus, repo_name)
 
 
-def gen_dataset_batch(corpus, numbers, batch_size=5, target_dir=None):
+def gen_dataset_batch(corpus, numbers, batch_size=5, target_dir=None, packed=False, weighted=False, n_errors=1, token_budget=None, max_file_tokens=None):
     repo_name = corpus.name
     if target_dir is None:
         dir = get_repo_dir(repo_name)
@@ -283,14 +440,21 @@ def gen_dataset_batch(corpus, numbers, batch_size=5, target_dir=None):
         shutil.rmtree(dir)
     create_dir(dir)
     save_json(dir, 'repo.json', corpus.info)
-    get_random_corpus_file = gen_get_random_file(corpus, numbers)
+    get_random_corpus_file = gen_get_random_file(corpus, numbers, weighted=weighted, max_file_tokens=max_file_tokens)
     shutil.copyfile(corpus.checkstyle, os.path.join(dir, f'./checkstyle.xml'))
     # checkstyle_batch = gen_checkstyle_batch(batch_size, corpus.checkstyle)
+    injection_index = Injection_Index()
+    pack = synthetic_pack.Synthetic_Pack(synthetic_pack.get_pack_path(dir)) if packed else None
     for goal, number in numbers.items():
         print(batch_size)
         def task(i):
-            gen_errored(corpus, get_random_corpus_file, repo_name, goal, i, dir)
+            gen_errored(corpus, get_random_corpus_file, repo_name, goal, i, dir, injection_index=injection_index, n_errors=n_errors, token_budget=token_budget)
+            if pack:
+                pack_errored(pack, dir, goal, i)
         start_pool(list(range(number)), batch_size, task)
+    report_duplicates(dir, injection_index)
+    if pack:
+        close_pack(pack, dir, numbers.keys())
 
 def map_and_count(reducer, data):
     result = {}
@@ -301,7 +465,18 @@ def map_and_count(reducer, data):
     return result
 
 
+def get_injection_operators(metadata):
+    """The injection operators of a sample, a list when several errors were injected
+    """
+    injection_operator = metadata['injection_operator']
+    if isinstance(injection_operator, str):
+        return [injection_operator]
+    return list(injection_operator)
+
 def load_repo(repo):
+    pack_path = synthetic_pack.get_pack_path(get_repo_dir(repo))
+    if os.path.exists(pack_path):
+        return synthetic_pack.Synthetic_Pack(pack_path).list_samples()
     return [ Synthetic_Checkstyle_Error(synthetic_error) for synthetic_error in list_errors(repo) ]
 
 def check_token_length(repo):
@@ -318,10 +493,10 @@ def summary(repo):
     synthetic_errors = load_repo(repo)
     for error in synthetic_errors:
         if error.get_metadata()['type'] == 'EmptyBlock':
-            print(error.dir)
+            print(f'{error.type}/{error.id}')
     results = {}
     results['type_count'] = map_and_count(lambda x: x.get_metadata()['type'], synthetic_errors)
-    results['operator_count'] = map_and_count(lambda x: x.get_metadata()['injection_operator'], synthetic_errors)
+    results['operator_count'] = map_and_count(lambda x: x, [ operator for x in synthetic_errors for operator in get_injection_operators(x.get_metadata()) ])
     results['file_count'] = map_and_count(lambda x: x.file_name, synthetic_errors)
     # print(results)
     save_json(get_repo_dir(repo), 'stats.json', results)
@@ -329,42 +504,35 @@ def summary(repo):
 
 ###  Experiment ####
 
-def copy_uglies(from_dir, to_dir):
+def copy_uglies(dir, split, to_dir):
     create_dir(to_dir)
-    uglies = [
-        java_file for java_file in glob.glob(f'{from_dir}/*/*.java')
-        if 'orig' not in java_file
-    ]
-    for file in tqdm(uglies, desc='Copy uglies'):
-        id, file_name = file.split('/')[-2:]
-        target = os.path.join(to_dir, id)
-        create_dir(target)
-        target_file = os.path.join(target, file_name)
-        shutil.copy(file, target_file)
+    dataset = synthetic_pack.open_dataset(dir)
+    for id in tqdm(dataset.list_ids(split), desc='Copy uglies'):
+        file_name, errored, original, metadata = dataset.read_sample(split, id)
+        target = create_dir(os.path.join(to_dir, str(id)))
+        save_file(target, f'{file_name}.java', errored)
         # metadata
-        metadata_file = file[:file.rfind('/')] + '/metadata.json'
-        target_metadata = os.path.join(target, 'metadata.json')
-        shutil.copy(metadata_file, target_metadata)
+        save_json(target, 'metadata.json', metadata)
 
 
 def with_index(iterator):
     return zip(iterator, range(len(iterator)))
 
-def copy_origs(from_dir, to_dir):
+def copy_origs(dir, split, to_dir):
     create_dir(to_dir)
-    origs = set([
-        file.split('/')[-1]
-        for file in glob.glob(f'{from_dir}/*/*-orig.java')
-    ])
+    from_dir = os.path.join(dir, split)
+    dataset = synthetic_pack.open_dataset(dir)
+    origs_content = {}
+    for id in dataset.list_ids(split):
+        file_name, errored, original, metadata = dataset.read_sample(split, id)
+        origs_content.setdefault(f'{file_name}-orig.java', original)
+    origs = sorted(origs_content)
     if len(origs) > 500:
         random.seed(a=hash("".join(from_dir.split('/')[-3:-1])))
         origs = random.sample(origs, k=500)
     for file_name, index in tqdm(with_index(origs), desc='Copy origs', total=len(origs)):
-        file_dir = glob.glob(f'{from_dir}/*/{file_name}')[0]
-        target = os.path.join(to_dir, str(index))
-        create_dir(target)
-        target_file = os.path.join(target, file_name)
-        shutil.copy(file_dir, target_file)
+        target = create_dir(os.path.join(to_dir, str(index)))
+        save_file(target, file_name, origs_content[file_name])
 
 def gen_experiment(dataset_name):
     dir = create_dir(get_repo_dir(dataset_name))
@@ -376,9 +544,9 @@ def gen_experiment(dataset_name):
         shutil.copy(checkstyle_suppressions_file_dir, os.path.join(target, 'checkstyle-suppressions.xml'))
     shutil.copy(os.path.join(dir, 'repo.json'), os.path.join(target, 'metadata.json'))
     ugly_dir = create_dir(os.path.join(target, 'ugly'))
-    copy_uglies(os.path.join(dir, 'testing'), ugly_dir)
+    copy_uglies(dir, 'testing', ugly_dir)
     orig_dir = create_dir(os.path.join(target, 'orig'))
-    copy_origs(os.path.join(dir, 'learning'), orig_dir)
+    copy_origs(dir, 'learning', orig_dir)
 
 def file_has_new_line_at_EOF(file_path):
     char = b''
@@ -398,6 +566,7 @@ def insert_new_line_at_EOF(dir):
     return modified_files
 
 def gen_repaired(tool, dir, dataset_metadata):
+    import repair
     if tool == 'styler':
         return tool, dir
     ugly_dir = os.path.join(dir, 'ugly')
@@ -412,6 +581,8 @@ def gen_repaired(tool, dir, dataset_metadata):
 
 
 def compute_diff_size(experiment_id, dataset, tool):
+    import repair
+    import styler
     experiment_dir = get_experiment_dir(experiment_id)
     json_file_name = f'diff_results_{tool}.json'
     json_path = os.path.join(experiment_dir, json_file_name)
@@ -474,6 +645,7 @@ def compute_diff_size(experiment_id, dataset, tool):
     return diffs
 
 def run_experiment(dataset_name, gen_repaired_files=True):
+    import repair
     experiment_id = dataset_name
     dir = get_experiment_dir(experiment_id)
     ugly_dir = os.path.join(dir, 'ugly')
@@ -534,13 +706,19 @@ if __name__ == '__main__':
     else:
         dataset_list = sys.argv[2:]
 
+    if len(sys.argv) >= 2 and sys.argv[1] == 'pack':
+        for dataset in dataset_list:
+            synthetic_pack.pack_dataset(get_repo_dir(dataset), remove=True)
+    if len(sys.argv) >= 2 and sys.argv[1] == 'unpack':
+        for dataset in dataset_list:
+            synthetic_pack.unpack_dataset(synthetic_pack.get_pack_path(get_repo_dir(dataset)), get_repo_dir(dataset))
     if len(sys.argv) >= 2 and sys.argv[1] == 'run':
         corpora = []
         for corpus in sys.argv[2:]:
             corpora.append( Corpus(config['CORPUS'][corpus], corpus) )
         share = { key:config['DATASHARE'].getint(key) for key in ['learning', 'validation', 'testing'] }
         for corpus in corpora:
-            gen_dataset(corpus, share)
+            gen_dataset(corpus, share, n_errors=get_n_errors(), token_budget=get_token_budget(), max_file_tokens=get_max_file_tokens())
     if len(sys.argv) >= 2 and sys.argv[1] == 'exp':
         for dataset in tqdm(dataset_list, desc='datasets'):
             target = get_experiment_dir(dataset)
@@ -548,6 +726,7 @@ if __name__ == '__main__':
                 gen_experiment(dataset)
             run_experiment(dataset)
     if len(sys.argv) >= 2 and sys.argv[1] == 'exp-cs':
+        import graph_plot
         results = {}
         for dataset in dataset_list:
             results[dataset] = run_experiment(dataset, gen_repaired_files=False)
@@ -575,6 +754,7 @@ if __name__ == '__main__':
         # json_pp(graph)
         graph_plot.n_bar_plot(graph)
     if len(sys.argv) >= 2 and sys.argv[1] == 'diff':
+        import graph_plot
         diff = {}
         tools = ('styler', 'naturalize', 'codebuff')
         for dataset in tqdm(dataset_list, desc='Diff datasets'):
@@ -596,6 +776,7 @@ if __name__ == '__main__':
         pp.pprint(list(graph['data'].keys()))
         graph_plot.boxplot(graph)
     if len(sys.argv) >= 2 and sys.argv[1] == 'diff-violin':
+        import graph_plot
         diff = {}
         tools = ('styler', 'naturalize', 'codebuff')
         for dataset in tqdm(dataset_list, desc='Diff datasets'):
@@ -621,6 +802,7 @@ if __name__ == '__main__':
             results[dataset] = check_token_length(dataset)
         save_json('./', 'check.json',results)
     if len(sys.argv) >= 2 and sys.argv[1] == 'analyse':
+        import graph_plot
         results = {}
         for dataset in tqdm(dataset_list):
             results[dataset] = summary(dataset)
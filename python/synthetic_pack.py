@@ -0,0 +1,321 @@
+# -*- coding: utf-8 -*-
+
+"""Packed container for the synthetic datasets.
+Each corpus original is stored once and each sample as a whitespace patch
+(start, end, replacement) over its original plus its metadata.
+"""
+
+import os
+import sys
+import json
+import glob
+import shutil
+import sqlite3
+import difflib
+import hashlib
+import threading
+from tqdm import tqdm
+
+from core import *
+
+_SPLITS = ('learning', 'validation', 'testing')
+_DATASET_FILES = ('repo.json', 'checkstyle.xml', 'checkstyle-suppressions.xml', 'duplicates.json')
+_PACK_FILE_NAME = 'dataset.pack'
+
+
+def get_pack_path(dir):
+    return os.path.join(dir, _PACK_FILE_NAME)
+
+
+def compute_patch(original, errored):
+    """Compute the smallest single edit turning original into errored
+    :return: (start, end, replacement) where original[start:end] is replaced
+    """
+    length = min(len(original), len(errored))
+    start = 0
+    while start < length and original[start] == errored[start]:
+        start += 1
+    end_original = len(original)
+    end_errored = len(errored)
+    while end_original > start and end_errored > start and original[end_original - 1] == errored[end_errored - 1]:
+        end_original -= 1
+        end_errored -= 1
+    return (start, end_original, errored[start:end_errored])
+
+
+def apply_patch(original, patch):
+    start, end, replacement = patch
+    return original[:start] + replacement + original[end:]
+
+
+def get_diff(original, errored):
+    """Diff of two sources in the normal format of the diff command,
+    the output is the one of the diff.diff files
+    """
+    def split_lines(source):
+        # only \n ends a line for diff, not the other line boundaries of str.splitlines
+        lines = [ line + '\n' for line in source.split('\n') ]
+        lines[-1] = lines[-1][:-1]
+        return lines if lines[-1] else lines[:-1]
+
+    lines_original = split_lines(original)
+    lines_errored = split_lines(errored)
+
+    def format_range(start, end):
+        return str(start + 1) if end - start == 1 else f'{start + 1},{end}'
+
+    def format_lines(prefix, lines):
+        result = ''
+        for line in lines:
+            result += prefix + line
+            if not line.endswith('\n'):
+                result += '\n\\ No newline at end of file\n'
+        return result
+
+    diff = ''
+    matcher = difflib.SequenceMatcher(None, lines_original, lines_errored, autojunk=False)
+    for tag, i1, i2, j1, j2 in matcher.get_opcodes():
+        if tag == 'equal':
+            continue
+        if tag == 'replace':
+            diff += f'{format_range(i1, i2)}c{format_range(j1, j2)}\n'
+            diff += format_lines('< ', lines_original[i1:i2]) + '---\n' + format_lines('> ', lines_errored[j1:j2])
+        elif tag == 'delete':
+            diff += f'{format_range(i1, i2)}d{j1}\n' + format_lines('< ', lines_original[i1:i2])
+        elif tag == 'insert':
+            diff += f'{i1}a{format_range(j1, j2)}\n' + format_lines('> ', lines_errored[j1:j2])
+    return diff
+
+
+class Packed_Synthetic_Error:
+    """Same interface as synthetic.Synthetic_Checkstyle_Error, backed by a pack
+    """
+
+    def __init__(self, pack, split, id, file_name, original_hash, patch, metadata):
+        self.pack = pack
+        self.id = int(id)
+        self.type = split
+        self.file_name = file_name
+        self.original_hash = original_hash
+        self.patch = patch
+        self.metadata = metadata
+        self.diff = None
+        self.original = None
+        self.errored = None
+
+    def get_diff(self):
+        if not self.diff:
+            self.diff = get_diff(self.get_original(), self.get_errored())
+        return self.diff
+
+    def get_count(self):
+        diff = self.get_diff()
+        plus = 0
+        minus = 0
+        for line in diff.split('\n'):
+            if line.startswith('> '):
+                plus += 1
+            if line.startswith('< '):
+                minus += 1
+        return max(plus, minus)
+
+    def get_metadata(self):
+        return self.metadata
+
+    def get_original(self):
+        if not self.original:
+            self.original = self.pack.get_original(self.original_hash)
+        return self.original
+
+    def get_errored(self):
+        if not self.errored:
+            self.errored = apply_patch(self.get_original(), self.patch)
+        return self.errored
+
+
+class Synthetic_Pack:
+    """Single file, indexed by (split, id), container of a synthetic dataset
+    """
+
+    def __init__(self, path):
+        self.path = path
+        self.lock = threading.Lock()
+        self.connection = sqlite3.connect(path, check_same_thread=False)
+        self.connection.executescript('''
+            CREATE TABLE IF NOT EXISTS originals (hash TEXT PRIMARY KEY, content TEXT);
+            CREATE TABLE IF NOT EXISTS samples (
+                split TEXT, id INTEGER, file_name TEXT, original TEXT, patch TEXT, metadata TEXT,
+                PRIMARY KEY (split, id)
+            );
+            CREATE TABLE IF NOT EXISTS files (name TEXT PRIMARY KEY, content TEXT);
+        ''')
+
+    def close(self):
+        with self.lock:
+            self.connection.commit()
+            self.connection.close()
+
+    def commit(self):
+        with self.lock:
+            self.connection.commit()
+
+    def add_file(self, name, content):
+        with self.lock:
+            self.connection.execute('INSERT OR REPLACE INTO files VALUES (?, ?)', (name, content))
+
+    def get_file(self, name):
+        with self.lock:
+            row = self.connection.execute('SELECT content FROM files WHERE name = ?', (name,)).fetchone()
+        return row[0] if row else None
+
+    def list_files(self):
+        with self.lock:
+            return [ row[0] for row in self.connection.execute('SELECT name FROM files') ]
+
+    def add_sample(self, split, id, file_name, original, errored, metadata):
+        original_hash = hashlib.sha1(original.encode('utf-8')).hexdigest()
+        patch = compute_patch(original, errored)
+        with self.lock:
+            self.connection.execute('INSERT OR IGNORE INTO originals VALUES (?, ?)', (original_hash, original))
+            self.connection.execute(
+                'INSERT OR REPLACE INTO samples VALUES (?, ?, ?, ?, ?, ?)',
+                (split, int(id), file_name, original_hash, json.dumps(patch), json.dumps(metadata))
+            )
+
+    def add_folder(self, split, id, folder):
+        """Add a sample from its folder (errored file, -orig file and metadata)
+        """
+        java_files = glob.glob(f'{folder}/*.java')
+        errored_path = [ file for file in java_files if not file.endswith('-orig.java') ][0]
+        original_path = [ file for file in java_files if file.endswith('-orig.java') ][0]
+        file_name = errored_path.split('/')[-1].split('.')[0]
+        metadata = open_json(os.path.join(folder, 'metadata.json'))
+        self.add_sample(split, id, file_name, open_file(original_path), open_file(errored_path), metadata)
+
+    def get_original(self, original_hash):
+        with self.lock:
+            row = self.connection.execute('SELECT content FROM originals WHERE hash = ?', (original_hash,)).fetchone()
+        return row[0]
+
+    def get_sample(self, split, id):
+        with self.lock:
+            row = self.connection.execute(
+                'SELECT file_name, original, patch, metadata FROM samples WHERE split = ? AND id = ?',
+                (split, int(id))
+            ).fetchone()
+        if row is None:
+            return None
+        file_name, original_hash, patch, metadata = row
+        return Packed_Synthetic_Error(self, split, id, file_name, original_hash, tuple(json.loads(patch)), json.loads(metadata))
+
+    def list_ids(self, split):
+        with self.lock:
+            return [ row[0] for row in self.connection.execute('SELECT id FROM samples WHERE split = ? ORDER BY id', (split,)) ]
+
+    def has_split(self, split):
+        with self.lock:
+            return self.connection.execute('SELECT 1 FROM samples WHERE split = ? LIMIT 1', (split,)).fetchone() is not None
+
+    def read_sample(self, split, id):
+        """Read a sample, same output as Folder_Dataset.read_sample
+        :return: (file_name, errored source, original source, metadata)
+        """
+        sample = self.get_sample(split, id)
+        return sample.file_name, sample.get_errored(), sample.get_original(), sample.get_metadata()
+
+    def list_samples(self, split=None):
+        splits = _SPLITS if split is None else (split,)
+        return [ self.get_sample(split, id) for split in splits for id in self.list_ids(split) ]
+
+    def export(self, target_dir):
+        """Export the pack back to the directory layout of gen_dataset
+        """
+        create_dir(target_dir)
+        for name in self.list_files():
+            save_file(target_dir, name, self.get_file(name))
+        for sample in tqdm(self.list_samples(), desc='Export'):
+            folder = create_dir(os.path.join(target_dir, f'./{sample.type}/{sample.id}'))
+            save_file(folder, f'{sample.file_name}.java', sample.get_errored())
+            save_file(folder, f'{sample.file_name}-orig.java', sample.get_original())
+            save_file(folder, 'diff.diff', sample.get_diff())
+            save_json(folder, 'metadata.json', sample.get_metadata())
+        return target_dir
+
+
+class Folder_Dataset:
+    """Synthetic dataset stored in the directory layout of gen_dataset,
+    same reading interface as Synthetic_Pack
+    """
+
+    def __init__(self, dir):
+        self.dir = dir
+
+    def get_split_dir(self, split):
+        return os.path.join(self.dir, f'./{split}')
+
+    def has_split(self, split):
+        return os.path.exists(self.get_split_dir(split))
+
+    def list_ids(self, split):
+        if not self.has_split(split):
+            return []
+        return sorted(( int(id) for id in list_folders(self.get_split_dir(split)) ))
+
+    def read_sample(self, split, id):
+        """Read a sample
+        :return: (file_name, errored source, original source, metadata)
+        """
+        folder = os.path.join(self.get_split_dir(split), str(id))
+        file_name = [ java_file for java_file in glob.glob(f'{folder}/*.java') if not java_file.endswith('-orig.java') ][0].split('/')[-1].split('.')[0]
+        errored = open_file(os.path.join(folder, f'{file_name}.java'))
+        original = open_file(os.path.join(folder, f'{file_name}-orig.java'))
+        return file_name, errored, original, open_json(os.path.join(folder, 'metadata.json'))
+
+
+_datasets = {}
+
+
+def open_dataset(dir):
+    """Reader of the synthetic dataset of dir, packed or not.
+    Cached per process, the sqlite connection of a pack is not shared with the forked workers.
+    """
+    key = (dir, os.getpid())
+    if key not in _datasets:
+        pack_path = get_pack_path(dir)
+        _datasets[key] = Synthetic_Pack(pack_path) if os.path.exists(pack_path) else Folder_Dataset(dir)
+    return _datasets[key]
+
+
+def pack_dataset(dir, pack_path=None, remove=False):
+    """Pack a synthetic dataset stored in the directory layout
+    """
+    if pack_path is None:
+        pack_path = get_pack_path(dir)
+    pack = Synthetic_Pack(pack_path)
+    for name in _DATASET_FILES:
+        if os.path.exists(os.path.join(dir, name)):
+            pack.add_file(name, open_file(os.path.join(dir, name)))
+    for split in _SPLITS:
+        split_dir = os.path.join(dir, split)
+        if not os.path.exists(split_dir):
+            continue
+        for id in tqdm(sorted(list_folders(split_dir), key=int), desc=f'Pack {split}'):
+            pack.add_folder(split, id, os.path.join(split_dir, id))
+        if remove:
+            shutil.rmtree(split_dir)
+    pack.close()
+    return pack_path
+
+
+def unpack_dataset(pack_path, target_dir):
+    pack = Synthetic_Pack(pack_path)
+    pack.export(target_dir)
+    pack.close()
+    return target_dir
+
+
+if __name__ == '__main__':
+    if sys.argv[1] == 'pack':
+        print(pack_dataset(sys.argv[2], remove=(len(sys.argv) > 3 and sys.argv[3] == 'remove')))
+    elif sys.argv[1] == 'unpack':
+        print(unpack_dataset(sys.argv[2], sys.argv[3]))
@@ -0,0 +1,179 @@
+# -*- coding: utf-8 -*-
+
+"""Fixed vocabulary and integer id export of the gen_IO sequences.
+The vocabulary only depends on the javalang token classes and on the targeted
+errors, it is the same for every project.
+"""
+
+import os
+from javalang import tokenizer
+
+from core import *
+
+VOCABULARY_FILE_NAME = 'vocab.txt'
+SPECIAL_TOKENS = ('<blank>', '<unk>', '<s>', '</s>')
+MAX_SPACES = 64
+MAX_NEW_LINES = 4
+MAX_INDENTATION = 64
+
+
+def list_token_classes(cls=tokenizer.JavaToken):
+    result = []
+    for sub_class in cls.__subclasses__():
+        result.append(sub_class)
+        result += list_token_classes(sub_class)
+    return result
+
+
+def get_java_token_values():
+    """Every value ml.get_token_value can return
+    """
+    values = set()
+    for cls in list_token_classes():
+        if issubclass(cls, (tokenizer.Keyword, tokenizer.Separator, tokenizer.Operator)):
+            values |= set(getattr(cls, 'VALUES', set()))
+        else:
+            values.add(cls.__name__)
+    return sorted(values)
+
+
+def get_whitespace_values():
+    """Every value ml.get_space_value can return within the limits
+    """
+    values = [ f'{spaces}_SP' for spaces in range(MAX_SPACES + 1) ]
+    for new_lines in range(1, MAX_NEW_LINES + 1):
+        values.append(f'{new_lines}_NL')
+        for indentation in range(1, MAX_INDENTATION + 1):
+            values.append(f'{new_lines}_NL_{indentation}_ID')
+            values.append(f'{new_lines}_NL_{indentation}_DD')
+    return values
+
+
+def get_error_tags():
+    return [ tag for error_type in sorted(targeted_errors) for tag in (f'<{error_type}>', f'</{error_type}>') ]
+
+
+def get_vocabulary():
+    """The fixed vocabulary, the id of a token is its index
+    """
+    return list(SPECIAL_TOKENS) + get_whitespace_values() + get_java_token_values() + get_error_tags()
+
+
+def save_vocabulary(dir, vocabulary=None):
+    if vocabulary is None:
+        vocabulary = get_vocabulary()
+    return save_file(dir, VOCABULARY_FILE_NAME, '\n'.join(vocabulary) + '\n')
+
+
+def load_vocabulary(dir):
+    return open_file(os.path.join(dir, VOCABULARY_FILE_NAME)).split('\n')[:-1]
+
+
+class Token_Id_Writer:
+    """Write the input and output sequences of a sub set as sharded int16 id arrays.
+    Each shard is a flat array of ids {sub_set}-{side}-{shard}.ids.npy and the array
+    of the sequence lengths {sub_set}-{side}-{shard}.lengths.npy.
+    """
+
+    def __init__(self, target, sub_set, vocabulary=None, shard_size=100000):
+        if vocabulary is None:
+            vocabulary = get_vocabulary()
+        self.target = target
+        self.sub_set = sub_set
+        self.token_to_id = { token:id for id, token in enumerate(vocabulary) }
+        self.unknown = self.token_to_id['<unk>']
+        self.shard_size = shard_size
+        self.shard = 0
+        self.buffers = { side:([], []) for side in ('I', 'O') }
+
+    def to_ids(self, tokens):
+        return [ self.token_to_id.get(token, self.unknown) for token in tokens ]
+
+    def write(self, tokens_errored, tokens_correct):
+        for side, tokens in (('I', tokens_errored), ('O', tokens_correct)):
+            ids, lengths = self.buffers[side]
+            ids += self.to_ids(tokens)
+            lengths.append(len(tokens))
+        if len(self.buffers['I'][1]) >= self.shard_size:
+            self.flush()
+
+    def flush(self):
+        import numpy as np
+        if len(self.buffers['I'][1]) == 0:
+            return
+        for side, (ids, lengths) in self.buffers.items():
+            prefix = os.path.join(self.target, f'{self.sub_set}-{side}-{self.shard:03d}')
+            np.save(f'{prefix}.ids.npy', np.array(ids, dtype=np.int16))
+            np.save(f'{prefix}.lengths.npy', np.array(lengths, dtype=np.int32))
+        self.buffers = { side:([], []) for side in ('I', 'O') }
+        self.shard += 1
+
+    def close(self):
+        self.flush()
+
+
+def list_shards(target, sub_set, side):
+    suffix = '.ids.npy'
+    prefix = f'{sub_set}-{side}-'
+    return sorted([
+        file[len(prefix):-len(suffix)]
+        for file in os.listdir(target)
+        if file.startswith(prefix) and file.endswith(suffix)
+    ])
+
+
+def load_shard(target, sub_set, side, shard):
+    """Memory map a shard
+    :return: (ids, lengths, offsets), the sequence i is ids[offsets[i]:offsets[i] + lengths[i]]
+    """
+    import numpy as np
+    prefix = os.path.join(target, f'{sub_set}-{side}-{shard}')
+    ids = np.load(f'{prefix}.ids.npy', mmap_mode='r')
+    lengths = np.load(f'{prefix}.lengths.npy', mmap_mode='r')
+    offsets = np.concatenate(([0], np.cumsum(lengths)[:-1]))
+    return ids, lengths, offsets
+
+
+def iter_sequences(target, sub_set, side):
+    for shard in list_shards(target, sub_set, side):
+        ids, lengths, offsets = load_shard(target, sub_set, side, shard)
+        for offset, length in zip(offsets, lengths):
+            yield ids[offset:offset + length]
+
+
+def pad(ids, lengths, offsets, indices, padding, prefix=(), suffix=()):
+    """Padded (max length, batch) int64 array of the sequences of the indices
+    """
+    import numpy as np
+    size = max([ lengths[index] for index in indices ]) + len(prefix) + len(suffix)
+    batch = np.full((size, len(indices)), padding, dtype=np.int64)
+    for column, index in enumerate(indices):
+        sequence = list(prefix) + list(ids[offsets[index]:offsets[index] + lengths[index]]) + list(suffix)
+        batch[:len(sequence), column] = sequence
+    return batch
+
+
+def iter_batches(target, sub_set, batch_size, shuffle=True, vocabulary=None):
+    """Batches of the memory mapped shards, the samples of a batch have similar input lengths
+    :return: iterator of (source (src_len, batch), target (tgt_len + 2, batch) with <s> and </s>)
+    """
+    import numpy as np
+    if vocabulary is None:
+        vocabulary = load_vocabulary(target)
+    token_to_id = { token:id for id, token in enumerate(vocabulary) }
+    blank, bos, eos = token_to_id['<blank>'], token_to_id['<s>'], token_to_id['</s>']
+    shards = list_shards(target, sub_set, 'I')
+    if shuffle:
+        np.random.shuffle(shards)
+    for shard in shards:
+        src_ids, src_lengths, src_offsets = load_shard(target, sub_set, 'I', shard)
+        tgt_ids, tgt_lengths, tgt_offsets = load_shard(target, sub_set, 'O', shard)
+        order = np.argsort(src_lengths, kind='stable')
+        batches = [ order[start:start + batch_size] for start in range(0, len(order), batch_size) ]
+        if shuffle:
+            np.random.shuffle(batches)
+        for indices in batches:
+            yield (
+                pad(src_ids, src_lengths, src_offsets, indices, blank),
+                pad(tgt_ids, tgt_lengths, tgt_offsets, indices, blank, prefix=(bos,), suffix=(eos,))
+            )
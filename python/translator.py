@@ -0,0 +1,187 @@
+# -*- coding: utf-8 -*-
+
+"""In-process OpenNMT translator.
+The model is loaded once and kept in memory, the token sequences are translated
+without temporary files nor a new python interpreter.
+"""
+
+import os
+import sys
+import time
+import codecs
+
+import token_utils
+from core import group_by
+
+dir_path = os.path.dirname(os.path.realpath(__file__))
+_OPEN_NMT_DIR = os.path.join(dir_path, 'OpenNMT-py')
+
+
+def import_open_nmt():
+    if _OPEN_NMT_DIR not in sys.path:
+        sys.path.insert(0, _OPEN_NMT_DIR)
+
+
+def get_target_vocab(translator):
+    """Get the target vocabulary and the end of sentence index of an OpenNMT translator
+    """
+    tgt_field = dict(translator.fields)['tgt']
+    tgt_field = getattr(tgt_field, 'base_field', tgt_field)
+    return tgt_field.vocab, tgt_field.vocab.stoi[tgt_field.eos_token]
+
+
+def gen_whitespace_generator(generator, vocab, eos_index):
+    """Wrap the generator of the model to only produce whitespace tokens (or the end of sentence)
+    """
+    import torch
+
+    class Whitespace_Generator(torch.nn.Module):
+
+        def __init__(self, generator, mask):
+            super().__init__()
+            self.generator = generator
+            self.register_buffer('mask', mask)
+
+        def forward(self, input):
+            # the mask is built on cpu, a quantized generator has no parameter to take the device from
+            log_probs = self.generator(input) + self.mask.to(input.device)
+            # renormalize over the allowed tokens
+            return log_probs - torch.logsumexp(log_probs, dim=-1, keepdim=True)
+
+    mask = torch.full((len(vocab.itos),), -float('inf'))
+    for index, token in enumerate(vocab.itos):
+        if index == eos_index or token_utils.is_whitespace_token(token):
+            mask[index] = 0
+    return Whitespace_Generator(generator, mask)
+
+
+def set_threads(num_threads=None):
+    """Use one intra-op thread per core of the host by default
+    """
+    import torch
+    torch.set_num_threads(num_threads or os.cpu_count())
+
+
+class Translator:
+    """OpenNMT translator of a model, kept resident.
+    With only_formatting, the model only outputs whitespace tokens and, when the
+    lengths are given, exactly the required number of tokens.
+    With quantized_model_path, the model is replaced by its quantized version.
+    """
+
+    def __init__(self, model_path, n_best=5, beam_size=5, batch_size=30, gpu=-1, only_formatting=False, quantized_model_path=None, num_threads=None):
+        import_open_nmt()
+        set_threads(num_threads)
+        import onmt.opts as opts
+        from onmt.utils.parse import ArgumentParser
+        from onmt.translate.translator import build_translator
+
+        parser = ArgumentParser()
+        opts.config_opts(parser)
+        opts.translate_opts(parser)
+        opt = parser.parse_args([
+            '-model', model_path,
+            '-src', os.devnull,
+            '-n_best', str(n_best),
+            '-beam_size', str(max(beam_size, n_best)),
+            '-batch_size', str(batch_size),
+            '-gpu', str(gpu)
+        ])
+        ArgumentParser.validate_translate_opts(opt)
+
+        self.model_path = model_path
+        self.n_best = n_best
+        self.batch_size = batch_size
+        # the translations are returned, nothing has to be written
+        self.out_file = codecs.open(os.devnull, 'w', 'utf-8')
+        self.translator = build_translator(opt, report_score=False, out_file=self.out_file)
+        if quantized_model_path:
+            import torch
+            self.translator.model = torch.load(quantized_model_path)
+            self.translator.model.eval()
+        self.only_formatting = only_formatting
+        if only_formatting:
+            vocab, eos_index = get_target_vocab(self.translator)
+            self.translator.model.generator = gen_whitespace_generator(self.translator.model.generator, vocab, eos_index)
+
+    def translate(self, inputs, lengths=None):
+        """Translate a list of token sequences
+        :param inputs: list of space separated token sequences
+        :param lengths: the number of tokens each translation must have (only_formatting)
+        :return: for each input, the list of the n best translations
+        """
+        if len(inputs) == 0:
+            return []
+        if not self.only_formatting or lengths is None:
+            return self.translate_group(inputs)
+        # the beam search forces the end of sentence at exactly the length of the group
+        results = [None] * len(inputs)
+        for length, indexes in group_by(lambda index: lengths[index], range(len(inputs))).items():
+            min_length, max_length = self.translator.min_length, self.translator.max_length
+            self.translator.min_length, self.translator.max_length = length, length
+            try:
+                for index, n_best in zip(indexes, self.translate_group([ inputs[index] for index in indexes ])):
+                    results[index] = n_best
+            finally:
+                self.translator.min_length, self.translator.max_length = min_length, max_length
+        return results
+
+    def translate_group(self, inputs):
+        scores, predictions = self.translator.translate(src=inputs, batch_size=self.batch_size)
+        return [ [ prediction for prediction in n_best if prediction != '' ] for n_best in predictions ]
+
+    def close(self):
+        self.out_file.close()
+
+
+def quantize_model(model_path, quantized_model_path):
+    """Quantize dynamically (int8) the LSTM and linear layers of a model
+    """
+    import torch
+    if not hasattr(getattr(torch, 'quantization', None), 'quantize_dynamic'):
+        raise RuntimeError(f'The dynamic quantization needs torch >= 1.6 (see requirements.txt), torch {torch.__version__} is installed')
+    translator = Translator(model_path)
+    quantized_model = torch.quantization.quantize_dynamic(
+        translator.translator.model,
+        {torch.nn.LSTM, torch.nn.LSTMCell, torch.nn.Linear},
+        dtype=torch.qint8
+    )
+    torch.save(quantized_model, quantized_model_path)
+    translator.close()
+    return quantized_model_path
+
+
+def evaluate(translator, inputs, targets, lengths=None):
+    """Accuracy and latency of a translator
+    :return: dict with the top 1 and top n accuracy and the time per input in ms
+    """
+    if len(targets) == 0:
+        raise ValueError('No testing sample to evaluate the translator on, set testing in the [DATASHARE] section of config.ini')
+    start = time.time()
+    predictions = translator.translate(inputs, lengths=lengths)
+    duration = time.time() - start
+    top_1 = sum([ 1 for n_best, target in zip(predictions, targets) if n_best[:1] == [target] ])
+    top_n = sum([ 1 for n_best, target in zip(predictions, targets) if target in n_best ])
+    return {
+        'top_1': top_1 / len(targets),
+        'top_n': top_n / len(targets),
+        'ms_per_input': duration / len(targets) * 1000
+    }
+
+
+def compare_quantized(model_path, quantized_model_path, src_path, tgt_path, only_formatting=False, limit=None):
+    """Compare the accuracy and the latency of a model and its quantized version on a testing set
+    """
+    if not os.path.exists(src_path) or not os.path.exists(tgt_path):
+        raise ValueError(f'No testing split in {os.path.dirname(src_path)}, set testing in the [DATASHARE] section of config.ini and generate the tokens again')
+    with open(src_path) as f:
+        inputs = [ line.rstrip('\n') for line in f ][:limit]
+    with open(tgt_path) as f:
+        targets = [ line.rstrip('\n') for line in f ][:limit]
+    lengths = [ len(target.split(' ')) for target in targets ] if only_formatting else None
+    result = {}
+    for name, quantized_path in (('fp32', None), ('int8', quantized_model_path)):
+        translator = Translator(model_path, only_formatting=only_formatting, quantized_model_path=quantized_path)
+        result[name] = evaluate(translator, inputs, targets, lengths=lengths)
+        translator.close()
+    return result
@@ -4,6 +4,7 @@ cp ./learning-O.txt ./remote_files/tgt-train.txt
 cp ./validation-I.txt ./remote_files/src-val.txt
 cp ./validation-O.txt ./remote_files/tgt-val.txt
 cp ./testing-I.txt ./remote_files/src-test.txt
+cp ./stats.json ./remote_files/stats.json
 # touch ./remote_files/src-test.txt
 dataset=$(basename "$PWD")-sy-of
 uid=$(head /dev/urandom | tr -dc A-Za-z0-9 | head -c 13)
@@ -0,0 +1,107 @@
+# -*- coding: utf-8 -*-
+
+"""Cold start of the styler commands.
+Every measure runs in a new interpreter, from the python directory:
+python utils/startup_benchmark.py [repeats] [model name]
+The medians are appended to startup_benchmark.json to follow them over time,
+the heavy modules loaded by a repair command are reported.
+"""
+
+import os
+import sys
+import json
+import time
+import datetime
+import subprocess
+import statistics
+
+_PYTHON_DIR = os.path.dirname(os.path.dirname(os.path.realpath(__file__)))
+_HISTORY_FILE = 'startup_benchmark.json'
+_HEAVY_MODULES = ('tensorflow', 'keras', 'matplotlib', 'scipy', 'numpy', 'git', 'torch', 'onmt')
+
+
+def get_commands(model_name=None):
+    commands = {
+        'import styler': 'import styler',
+        'import repair_server': 'import repair_server'
+    }
+    if model_name:
+        commands['styler repair (translator loaded)'] = f'import styler; styler.gen_repair_translator({model_name!r}, only_formatting=True)'
+    return commands
+
+
+def run(code):
+    """Run code in a new interpreter
+    :return: (wall time in seconds, heavy modules loaded)
+    """
+    report = f'; import sys, json; print(json.dumps([ m for m in {_HEAVY_MODULES!r} if m in sys.modules ]))'
+    start = time.time()
+    output = subprocess.check_output([sys.executable, '-c', code + report], cwd=_PYTHON_DIR, stderr=subprocess.DEVNULL)
+    duration = time.time() - start
+    return duration, json.loads(output.decode('utf-8').strip().split('\n')[-1])
+
+
+def get_slowest_imports(code, n=10):
+    """The n imports with the highest cumulative time (python -X importtime)
+    :return: list of (module, cumulative time in ms)
+    """
+    process = subprocess.run([sys.executable, '-X', 'importtime', '-c', code], cwd=_PYTHON_DIR, stdout=subprocess.DEVNULL, stderr=subprocess.PIPE)
+    imports = []
+    for line in process.stderr.decode('utf-8').split('\n'):
+        if not line.startswith('import time:') or 'cumulative' in line:
+            continue
+        self_time, cumulative, module = line[len('import time:'):].split('|')
+        imports.append((module.strip(), int(cumulative) / 1000))
+    return sorted(imports, key=lambda x: -x[1])[:n]
+
+
+def benchmark(repeats=5, model_name=None):
+    results = {}
+    for name, code in get_commands(model_name).items():
+        measures = [ run(code) for _ in range(repeats) ]
+        results[name] = {
+            'median': statistics.median([ duration for duration, modules in measures ]),
+            'min': min([ duration for duration, modules in measures ]),
+            'heavy_modules': measures[0][1]
+        }
+    return results
+
+
+def load_history():
+    path = os.path.join(_PYTHON_DIR, _HISTORY_FILE)
+    if os.path.exists(path):
+        with open(path) as f:
+            return json.load(f)
+    return []
+
+
+def save_history(history):
+    with open(os.path.join(_PYTHON_DIR, _HISTORY_FILE), 'w') as f:
+        json.dump(history, f, indent=4)
+
+
+if __name__ == '__main__':
+    repeats = int(sys.argv[1]) if len(sys.argv) > 1 else 5
+    model_name = sys.argv[2] if len(sys.argv) > 2 else None
+
+    results = benchmark(repeats=repeats, model_name=model_name)
+    history = load_history()
+    previous = history[-1]['results'] if history else {}
+    for name, result in results.items():
+        line = f'{name}: {result["median"] * 1000:.0f} ms (min {result["min"] * 1000:.0f} ms)'
+        if name in previous:
+            line += f', was {previous[name]["median"] * 1000:.0f} ms'
+        if result['heavy_modules']:
+            line += f', loads {", ".join(result["heavy_modules"])}'
+        print(line)
+    print('Slowest imports of styler:')
+    for module, cumulative in get_slowest_imports('import styler'):
+        print(f'    {module}: {cumulative:.1f} ms')
+
+    history.append({
+        'date': datetime.datetime.now().isoformat(timespec='seconds'),
+        'python': sys.version.split(' ')[0],
+        'repeats': repeats,
+        'results': results
+    })
+    save_history(history)